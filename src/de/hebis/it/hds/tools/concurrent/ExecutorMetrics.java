@@ -0,0 +1,379 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Instrumentation of a {@link WaitingNamedExecutorService}.<br>
+ * The recording uses only lock free counters and histograms, so it may stay switched on in production.<br>
+ * The live values are published via JMX as 'de.hebis.it.hds.tools.concurrent:type=WaitingNamedExecutorService,name=executorName' as long as the executor is running.
+ * {@link #snapshot()} returns a frozen copy.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-10 uh First try
+ */
+public class ExecutorMetrics implements ExecutorMetricsMXBean {
+   static final Logger                             LOG            = LogManager.getLogger(ExecutorMetrics.class);
+   private final String                            name;
+   private final IntSupplier                       queueSize;
+   private final LongHistogram                     queueDepths    = new LongHistogram();
+   private final LongHistogram                     admissionWait  = new LongHistogram();
+   private final LongHistogram                     queueWait      = new LongHistogram();
+   private final LongHistogram                     runTime        = new LongHistogram();
+   private final LongAccumulator                   peakQueueDepth = new LongAccumulator(Math::max, 0);
+   private final LongAdder                         submitted      = new LongAdder();
+   private final LongAdder                         completed      = new LongAdder();
+   private final LongAdder                         failed         = new LongAdder();
+   private final LongAdder                         busyNanos      = new LongAdder();
+   private final ConcurrentHashMap<Thread, Worker> workers        = new ConcurrentHashMap<>();
+   private ObjectName                              jmxName        = null;
+
+   /**
+    * Bookkeeping of a worker thread. Written only by the worker itself.
+    */
+   private static class Worker {
+      final long    created = System.nanoTime();
+      volatile long busy    = 0;
+      volatile long since   = 0; // start of the current task, 0 if idle
+   }
+
+   /**
+    * Instance the metrics for an executor
+    * 
+    * @param executorName The name of the executor
+    * @param queueSize Supplier for the current queue depth
+    */
+   ExecutorMetrics(String executorName, IntSupplier queueSize) {
+      this.name = executorName;
+      this.queueSize = queueSize;
+   }
+
+   /**
+    * A task was admitted to the input queue.
+    * 
+    * @param waitNanos How long the producer was blocked
+    */
+   void admitted(long waitNanos) {
+      int depth = queueSize.getAsInt();
+      submitted.increment();
+      admissionWait.record(waitNanos);
+      queueDepths.record(depth);
+      peakQueueDepth.accumulate(depth);
+   }
+
+   /**
+    * A worker takes a task.
+    * 
+    * @param worker The executing thread
+    * @param queueWaitNanos How long the task was waiting in the queue
+    * @param now Start of the task
+    */
+   void started(Thread worker, long queueWaitNanos, long now) {
+      queueWait.record(queueWaitNanos);
+      Worker bookkeeping = workers.get(worker);
+      if (bookkeeping != null) bookkeeping.since = now;
+   }
+
+   /**
+    * A worker finished a task.
+    * 
+    * @param worker The executing thread
+    * @param runNanos How long the task was running
+    * @param withError TRUE if the task failed
+    */
+   void finished(Thread worker, long runNanos, boolean withError) {
+      runTime.record(runNanos);
+      busyNanos.add(runNanos);
+      completed.increment();
+      if (withError) failed.increment();
+      Worker bookkeeping = workers.get(worker);
+      if (bookkeeping != null) {
+         bookkeeping.busy += runNanos;
+         bookkeeping.since = 0;
+      }
+   }
+
+   /**
+    * Start bookkeeping of a worker thread.
+    * 
+    * @param worker The new thread
+    */
+   void workerStarted(Thread worker) {
+      workers.put(worker, new Worker());
+   }
+
+   /**
+    * Stop bookkeeping of a worker thread.
+    * 
+    * @param worker The finishing thread
+    */
+   void workerStopped(Thread worker) {
+      workers.remove(worker);
+   }
+
+   /**
+    * Publish the metrics via JMX. Failures are logged only.
+    */
+   void register() {
+      try {
+         ObjectName objectName = new ObjectName("de.hebis.it.hds.tools.concurrent:type=WaitingNamedExecutorService,name=" + ObjectName.quote(name));
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         if (server.isRegistered(objectName)) {
+            LOG.warn(name + ": An other executor with the same name is running. The metrics are not published via JMX.");
+            return;
+         }
+         server.registerMBean(this, objectName);
+         jmxName = objectName;
+      } catch (JMException e) {
+         LOG.warn(name + ": The metrics could not be published via JMX. " + e.toString());
+      }
+   }
+
+   /**
+    * Remove the metrics from JMX
+    */
+   void unregister() {
+      if (jmxName == null) return;
+      try {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+      } catch (JMException e) {
+         LOG.warn(name + ": The metrics could not be removed from JMX. " + e.toString());
+      }
+      jmxName = null;
+   }
+
+   /**
+    * Take a copy of all values.
+    * 
+    * @return The frozen metrics
+    */
+   public Snapshot snapshot() {
+      return new Snapshot(this);
+   }
+
+   @Override
+   public String getName() {
+      return name;
+   }
+
+   @Override
+   public int getQueueDepth() {
+      return queueSize.getAsInt();
+   }
+
+   @Override
+   public long getPeakQueueDepth() {
+      return peakQueueDepth.get();
+   }
+
+   @Override
+   public LongHistogram.Snapshot getQueueDepths() {
+      return queueDepths.snapshot();
+   }
+
+   @Override
+   public LongHistogram.Snapshot getAdmissionWait() {
+      return admissionWait.snapshot();
+   }
+
+   @Override
+   public LongHistogram.Snapshot getQueueWait() {
+      return queueWait.snapshot();
+   }
+
+   @Override
+   public LongHistogram.Snapshot getRunTime() {
+      return runTime.snapshot();
+   }
+
+   @Override
+   public long getSubmittedCount() {
+      return submitted.sum();
+   }
+
+   @Override
+   public long getCompletedCount() {
+      return completed.sum();
+   }
+
+   @Override
+   public long getFailedCount() {
+      return failed.sum();
+   }
+
+   @Override
+   public long getBusyNanos() {
+      return busyNanos.sum();
+   }
+
+   @Override
+   public Map<String, Long> getWorkerBusyNanos() {
+      long now = System.nanoTime();
+      Map<String, Long> ret = new TreeMap<>();
+      workers.forEach((thread, worker) -> ret.put(thread.getName(), busy(worker, now)));
+      return ret;
+   }
+
+   @Override
+   public Map<String, Long> getWorkerIdleNanos() {
+      long now = System.nanoTime();
+      Map<String, Long> ret = new TreeMap<>();
+      workers.forEach((thread, worker) -> ret.put(thread.getName(), now - worker.created - busy(worker, now)));
+      return ret;
+   }
+
+   /**
+    * Helper to get the busy time of a worker, including the current task.
+    */
+   private static long busy(Worker worker, long now) {
+      long since = worker.since;
+      return worker.busy + ((since == 0) ? 0 : now - since);
+   }
+
+   @Override
+   public String toString() {
+      return snapshot().toString();
+   }
+
+   /**
+    * Frozen copy of {@link ExecutorMetrics}
+    */
+   public static class Snapshot implements ExecutorMetricsMXBean {
+      private final String                 name;
+      private final int                    queueDepth;
+      private final long                   peakQueueDepth;
+      private final LongHistogram.Snapshot queueDepths;
+      private final LongHistogram.Snapshot admissionWait;
+      private final LongHistogram.Snapshot queueWait;
+      private final LongHistogram.Snapshot runTime;
+      private final long                   submitted;
+      private final long                   completed;
+      private final long                   failed;
+      private final long                   busyNanos;
+      private final Map<String, Long>      workerBusyNanos;
+      private final Map<String, Long>      workerIdleNanos;
+
+      Snapshot(ExecutorMetrics live) {
+         name = live.getName();
+         queueDepth = live.getQueueDepth();
+         peakQueueDepth = live.getPeakQueueDepth();
+         queueDepths = live.getQueueDepths();
+         admissionWait = live.getAdmissionWait();
+         queueWait = live.getQueueWait();
+         runTime = live.getRunTime();
+         submitted = live.getSubmittedCount();
+         completed = live.getCompletedCount();
+         failed = live.getFailedCount();
+         busyNanos = live.getBusyNanos();
+         workerBusyNanos = Collections.unmodifiableMap(live.getWorkerBusyNanos());
+         workerIdleNanos = Collections.unmodifiableMap(live.getWorkerIdleNanos());
+      }
+
+      @Override
+      public String getName() {
+         return name;
+      }
+
+      @Override
+      public int getQueueDepth() {
+         return queueDepth;
+      }
+
+      @Override
+      public long getPeakQueueDepth() {
+         return peakQueueDepth;
+      }
+
+      @Override
+      public LongHistogram.Snapshot getQueueDepths() {
+         return queueDepths;
+      }
+
+      @Override
+      public LongHistogram.Snapshot getAdmissionWait() {
+         return admissionWait;
+      }
+
+      @Override
+      public LongHistogram.Snapshot getQueueWait() {
+         return queueWait;
+      }
+
+      @Override
+      public LongHistogram.Snapshot getRunTime() {
+         return runTime;
+      }
+
+      @Override
+      public long getSubmittedCount() {
+         return submitted;
+      }
+
+      @Override
+      public long getCompletedCount() {
+         return completed;
+      }
+
+      @Override
+      public long getFailedCount() {
+         return failed;
+      }
+
+      @Override
+      public long getBusyNanos() {
+         return busyNanos;
+      }
+
+      @Override
+      public Map<String, Long> getWorkerBusyNanos() {
+         return workerBusyNanos;
+      }
+
+      @Override
+      public Map<String, Long> getWorkerIdleNanos() {
+         return workerIdleNanos;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder out = new StringBuilder(name);
+         out.append(": submitted=").append(submitted).append(" completed=").append(completed).append(" failed=").append(failed);
+         out.append(" queue=").append(queueDepth).append(" peak=").append(peakQueueDepth).append('\n');
+         out.append("  queue depth    : ").append(queueDepths).append('\n');
+         out.append("  admission wait : ").append(admissionWait).append('\n');
+         out.append("  queue wait     : ").append(queueWait).append('\n');
+         out.append("  run time       : ").append(runTime);
+         return out.toString();
+      }
+   }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ExecutorMetrics} of a {@link WaitingNamedExecutorService}.<br>
+ * All durations are given in nanoseconds.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-10 uh First try
+ */
+public interface ExecutorMetricsMXBean {
+
+   /**
+    * @return The name of the executor
+    */
+   String getName();
+
+   /**
+    * @return The number of tasks waiting in the input queue
+    */
+   int getQueueDepth();
+
+   /**
+    * @return The largest number of waiting tasks seen at an admission
+    */
+   long getPeakQueueDepth();
+
+   /**
+    * @return The queue depths seen by the admitted tasks
+    */
+   LongHistogram.Snapshot getQueueDepths();
+
+   /**
+    * @return How long the producers were blocked until their task was admitted
+    */
+   LongHistogram.Snapshot getAdmissionWait();
+
+   /**
+    * @return How long the tasks were waiting in the queue
+    */
+   LongHistogram.Snapshot getQueueWait();
+
+   /**
+    * @return How long the tasks were running
+    */
+   LongHistogram.Snapshot getRunTime();
+
+   /**
+    * @return Number of admitted tasks
+    */
+   long getSubmittedCount();
+
+   /**
+    * @return Number of finished tasks (including the failed)
+    */
+   long getCompletedCount();
+
+   /**
+    * @return Number of tasks finished with an exception
+    */
+   long getFailedCount();
+
+   /**
+    * @return Busy time of all tasks
+    */
+   long getBusyNanos();
+
+   /**
+    * @return Busy time per worker thread (not available for virtual threads)
+    */
+   Map<String, Long> getWorkerBusyNanos();
+
+   /**
+    * @return Idle time per worker thread (not available for virtual threads)
+    */
+   Map<String, Long> getWorkerIdleNanos();
+}
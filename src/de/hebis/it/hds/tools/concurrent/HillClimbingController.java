@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Simple hill climbing controller for the number of worker threads.<br>
+ * Each call of {@link #update(long, long, long, long)} compares the throughput of the last interval with the interval before:
+ * <dl>
+ * <dt>gain</dt>
+ * <dd>Keep the direction. Until the first loss the step is doubled, to find the region of the optimum fast.</dd>
+ * <dt>loss</dt>
+ * <dd>Turn around, step by a single thread.</dd>
+ * <dt>no significant change</dt>
+ * <dd>Prefer less threads.</dd>
+ * </dl>
+ * If the tasks are not waiting in the queue (the workers keep up with the producers), the number of threads is reduced.<br>
+ * The controller has no clock and no threads, the same measurements always give the same decisions.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-18 uh First try
+ */
+public class HillClimbingController {
+   private final int    minThreads;
+   private final int    maxThreads;
+   private final double tolerance;
+   private int          threads;
+   private int          direction          = 1;
+   private int          step               = 1;
+   private double       previousThroughput = Double.NaN;
+   private boolean      exploring          = true;
+
+   /**
+    * Instance a new controller
+    * 
+    * @param minThreads Lower bound of threads
+    * @param maxThreads Upper bound of threads
+    * @param tolerance Relative change of throughput, seen as noise (e.g. 0.01)
+    */
+   public HillClimbingController(int minThreads, int maxThreads, double tolerance) {
+      this.minThreads = Math.max(1, minThreads);
+      this.maxThreads = Math.max(this.minThreads, maxThreads);
+      this.tolerance = tolerance;
+      threads = this.minThreads;
+   }
+
+   /**
+    * Take the measurements of an interval, and compute the number of threads for the next interval.
+    * 
+    * @param completed Number of tasks completed in the interval
+    * @param elapsedNanos Length of the interval
+    * @param queueWaitNanos Average time the tasks were waiting in the queue
+    * @param runNanos Average run time of the tasks
+    * @return The new number of threads
+    */
+   public int update(long completed, long elapsedNanos, long queueWaitNanos, long runNanos) {
+      if (elapsedNanos <= 0) return threads;
+      double throughput = completed * 1e9 / elapsedNanos;
+      if (queueWaitNanos * 10 < runNanos) { // no backlog
+         previousThroughput = Double.NaN;
+         direction = 1;
+         step = 1;
+         exploring = true;
+         return move(-1);
+      }
+      if (Double.isNaN(previousThroughput)) { // first probe
+         previousThroughput = throughput;
+         return move(direction * step);
+      }
+      if (throughput > previousThroughput * (1 + tolerance)) {
+         if (exploring) step = Math.min(step * 2, maxThreads - minThreads + 1);
+      } else if (throughput < previousThroughput * (1 - tolerance)) {
+         direction = -direction;
+         step = 1;
+         exploring = false;
+      } else {
+         direction = -1;
+         step = 1;
+      }
+      previousThroughput = throughput;
+      return move(direction * step);
+   }
+
+   /**
+    * @return The current number of threads
+    */
+   public int getThreads() {
+      return threads;
+   }
+
+   /**
+    * Helper to change the number of threads within the bounds. At a bound the direction turns.
+    */
+   private int move(int delta) {
+      int next = Math.max(minThreads, Math.min(maxThreads, threads + delta));
+      if ((next == threads) && (delta != 0)) {
+         direction = -Integer.signum(delta);
+         step = 1;
+         exploring = false;
+      }
+      threads = next;
+      return threads;
+   }
+
+   /**
+    * Poor man's test harness.<br>
+    * Simulates a CPU bound and a latency bound workload (no real threads, so the results are deterministic) and prints the chosen number of threads.
+    * 
+    * @param args All Parameters are ignored
+    */
+   public static void main(String[] args) {
+      // 8 cores, every thread above costs 3% by contention
+      simulate("CPU bound (8 cores)", threads -> Math.min(threads, 8) * 1000.0 * Math.pow(0.97, Math.max(0, threads - 8)));
+      // 20 ms latency per task, the backend saturates at 40 concurrent requests
+      simulate("latency bound (saturation at 40)", threads -> Math.min(threads, 40) * 50.0);
+   }
+
+   /**
+    * Helper for {@link #main(String[])}: Runs 40 intervals of one second with a permanent backlog.
+    * 
+    * @param label Name of the workload
+    * @param model Throughput (tasks per second) as function of the number of threads
+    */
+   private static void simulate(String label, IntToDoubleFunction model) {
+      HillClimbingController controller = new HillClimbingController(2, 64, 0.01);
+      StringBuilder trace = new StringBuilder();
+      for (int interval = 0; interval < 40; interval++) {
+         int threads = controller.getThreads();
+         trace.append(threads).append(' ');
+         long completed = (long) model.applyAsDouble(threads);
+         controller.update(completed, 1000000000L, 5000000L, 1000000L);
+      }
+      System.out.println(label + ": " + trace);
+   }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A partitioned variant of the {@link WaitingNamedExecutorService}.<br>
+ * All tasks with the same key (e.g. a PPN) are executed one after the other in the order of their submission. Tasks with different keys run in parallel.<br>
+ * The keys are mapped by their hash code to a fixed number of lanes. Each lane has its own bounded admission. The lanes are not bound to a thread: a worker takes the next lane
+ * with pending tasks, so idle workers take over the work of busy lanes. A lane is never processed by two workers at the same time, that is the finest granularity which keeps the
+ * order of the keys.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-12 uh First try
+ */
+public class KeyAffinityExecutorService {
+   private static final Logger         LOG       = LogManager.getLogger(KeyAffinityExecutorService.class);
+   /** Maximum number of tasks processed in one go, before a lane gives way to the other lanes */
+   private static final int            BATCHSIZE = 64;
+   private String                      myName    = "unset";
+   private Lane[]                      lanes     = null;
+   private int                         lanelength;
+   private WaitingNamedExecutorService workers   = null;
+   private volatile boolean            shutdown  = false;
+
+   /**
+    * Instance a new ExecutorService.
+    * 
+    * @param executorName Name for the executor and the handled treads
+    * @param lanecount Number of lanes. Several times the number of threads gives a good balance.
+    * @param lanelength Maximum number of pending tasks per lane
+    * @param paralelthreads Number of worker threads
+    */
+   public KeyAffinityExecutorService(String executorName, int lanecount, int lanelength, int paralelthreads) {
+      if (executorName != null) myName = executorName;
+      if (lanecount < 1) lanecount = 1;
+      if (lanelength < 1) lanelength = 1;
+      this.lanelength = lanelength;
+      lanes = new Lane[lanecount];
+      for (int i = 0; i < lanecount; i++) lanes[i] = new Lane(lanelength);
+      // Each lane is queued at most once, so the admission of the workers never blocks.
+      workers = new WaitingNamedExecutorService(myName, lanecount, paralelthreads);
+   }
+
+   /**
+    * Take a new {@link Runnable}. Waits until the lane of the key can take the task.
+    * 
+    * @param key The key, tasks with equal keys are executed in submission order.
+    * @param task The runnable
+    */
+   public void execute(Object key, Runnable task) {
+      try {
+         if (executeInterruptibly(key, task)) return;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, task couldn't placed into the input queue.");
+      }
+      LOG.warn("Runnable: " + task + " could not be taken.");
+   }
+
+   /**
+    * Take a new {@link Runnable}, but wait at most the given time for a free slot in the lane of the key.
+    * 
+    * @param key The key, tasks with equal keys are executed in submission order.
+    * @param task The runnable
+    * @param timeout The maximum time to wait
+    * @param unit The time unit of the timeout argument
+    * @return TRUE if the task was taken, FALSE if the time elapsed or the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public boolean execute(Object key, Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+      return laneOf(key).admit(task, Math.max(0, unit.toNanos(timeout)));
+   }
+
+   /**
+    * Take a new {@link Runnable}. Waits until the lane of the key can take the task, but honors interrupts.
+    * 
+    * @param key The key, tasks with equal keys are executed in submission order.
+    * @param task The runnable
+    * @return TRUE if the task was taken, FALSE if the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public boolean executeInterruptibly(Object key, Runnable task) throws InterruptedException {
+      return laneOf(key).admit(task, -1);
+   }
+
+   /**
+    * Take a new {@link Callable}. Waits until the lane of the key can take the task.
+    * 
+    * @param key The key, tasks with equal keys are executed in submission order.
+    * @param task The callable
+    * @param <T> T - the type of the task's result
+    * @return A Future of the callables result or NULL if the callable couldn't be taken.
+    */
+   public <T> Future<T> submit(Object key, Callable<T> task) {
+      FutureTask<T> future = new FutureTask<>(task);
+      try {
+         if (executeInterruptibly(key, future)) return future;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, task couldn't placed into the input queue.");
+      }
+      LOG.warn("Callable:" + task + " could not be taken.");
+      return null;
+   }
+
+   /**
+    * Notify the executor service to shutdown.<br>
+    * This method is waiting, till all tasks of all lanes are finished. It may be called more than once.
+    */
+   public void shutdown() {
+      if (LOG.isDebugEnabled()) LOG.debug(myName + " is shuting down. (after all tasks are finished");
+      shutdown = true;
+      try {
+         // A lane is empty, when all permits are returned. Give them back, so a further call doesn't block.
+         for (Lane lane : lanes) {
+            lane.admission.acquire(lanelength);
+            lane.admission.release(lanelength);
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, shutdown without waiting for all lanes.");
+      }
+      workers.shutdown();
+   }
+
+   /**
+    * Helper to find the lane of a key
+    * 
+    * @param key The key
+    * @return The lane for all tasks of the key
+    */
+   private Lane laneOf(Object key) {
+      int hash = (key == null) ? 0 : key.hashCode();
+      hash ^= (hash >>> 16);
+      return lanes[Math.floorMod(hash, lanes.length)];
+   }
+
+   /**
+    * A serial queue with bounded admission.<br>
+    * The lane puts itself into the queue of the workers, when there are pending tasks.
+    */
+   private class Lane implements Runnable {
+      final ConcurrentLinkedQueue<Runnable> tasks     = new ConcurrentLinkedQueue<>();
+      final AtomicBoolean                   scheduled = new AtomicBoolean(false);
+      final Semaphore                       admission;
+
+      Lane(int length) {
+         admission = new Semaphore(length);
+      }
+
+      /**
+       * Wait for a free slot in the lane, and add the task
+       * 
+       * @param task The task to add
+       * @param timeoutNanos Maximum time to wait for a free slot, negative values mean 'no limit'.
+       * @return TRUE if the task was taken, FALSE if the time elapsed or the executor is shut down.
+       * @throws InterruptedException if interrupted while waiting
+       */
+      boolean admit(Runnable task, long timeoutNanos) throws InterruptedException {
+         if (shutdown) return false;
+         if (timeoutNanos < 0) admission.acquire();
+         else if (!admission.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) return false;
+         if (shutdown) { // shut down while waiting
+            admission.release();
+            return false;
+         }
+         tasks.add(task);
+         schedule();
+         return true;
+      }
+
+      /**
+       * Put the lane into the queue of the workers, if not already done.
+       */
+      void schedule() {
+         if (scheduled.compareAndSet(false, true)) workers.execute(this);
+      }
+
+      /**
+       * Process a batch of pending tasks.
+       */
+      @Override
+      public void run() {
+         Runnable task;
+         try {
+            for (int i = 0; (i < BATCHSIZE) && ((task = tasks.poll()) != null); i++) {
+               try {
+                  task.run();
+               } catch (RuntimeException e) {
+                  LOG.warn(myName + ": Task \"" + task + "\" failed: " + e.toString());
+               } finally {
+                  admission.release();
+               }
+            }
+         } finally { // even if a task threw an Error, the lane must not stay blocked
+            scheduled.set(false);
+            // Tasks added after the last poll, or left over by the batch limit
+            if (!tasks.isEmpty()) schedule();
+         }
+      }
+   }
+
+   /**
+    * Poor man's test: Several producers submit numbered tasks for some keys, the tasks check that they run in the order of their submission per key. One task throws an
+    * {@link Error}, the lane has to go on nevertheless. At the end shutdown is called twice.
+    * 
+    * @param args [number of tasks per key] [number of keys]
+    * @throws InterruptedException if interrupted while waiting for the producers
+    */
+   public static void main(String[] args) throws InterruptedException {
+      int tasks = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+      int keys = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+      KeyAffinityExecutorService executor = new KeyAffinityExecutorService("order", 8, 16, 4);
+      int[] last = new int[keys];
+      AtomicLong errors = new AtomicLong();
+      AtomicLong done = new AtomicLong();
+      // one producer per key range, so the submission order per key is well defined
+      Thread[] producers = new Thread[4];
+      for (int p = 0; p < producers.length; p++) {
+         int first = p;
+         producers[p] = new Thread(() -> {
+            for (int i = 1; i <= tasks; i++) {
+               for (int key = first; key < keys; key += producers.length) {
+                  int k = key;
+                  int number = i;
+                  executor.execute("key" + k, () -> {
+                     if (last[k] != number - 1) errors.incrementAndGet();
+                     last[k] = number;
+                     done.incrementAndGet();
+                     if ((k == 0) && (number == 2)) throw new AssertionError("Error in a task");
+                  });
+               }
+            }
+         });
+         producers[p].start();
+      }
+      for (Thread producer : producers) producer.join();
+      executor.shutdown();
+      executor.shutdown(); // must not block
+      System.out.println(done.get() + " of " + ((long) tasks * keys) + " tasks done, " + errors.get() + " out of order");
+   }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram for non negative long values (e.g. durations in nanoseconds or queue depths).<br>
+ * The values are counted in buckets of the powers of two. So recording a value costs only a few atomic increments, and the percentiles have a precision of factor two.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-10 uh First try
+ */
+public class LongHistogram {
+   private static final int      BUCKETS = 64;
+   private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+   private final LongAdder       count   = new LongAdder();
+   private final LongAdder       sum     = new LongAdder();
+   private final LongAccumulator max     = new LongAccumulator(Math::max, 0);
+
+   /**
+    * Count a value.
+    * 
+    * @param value The value to count. Negative values are counted as 0.
+    */
+   public void record(long value) {
+      if (value < 0) value = 0;
+      // bucket 0 holds the 0, bucket i holds [2^(i-1) .. 2^i - 1]
+      buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+      count.increment();
+      sum.add(value);
+      max.accumulate(value);
+   }
+
+   /**
+    * Take a snapshot of the current counts.<br>
+    * Concurrent recordings may be included partially.
+    * 
+    * @return The snapshot
+    */
+   public Snapshot snapshot() {
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) counts[i] = buckets.get(i);
+      return new Snapshot(counts, count.sum(), sum.sum(), max.get());
+   }
+
+   /**
+    * Immutable view of a {@link LongHistogram}.
+    */
+   public static class Snapshot {
+      private final long[] counts;
+      private final long   count;
+      private final long   sum;
+      private final long   max;
+
+      Snapshot(long[] counts, long count, long sum, long max) {
+         this.counts = counts;
+         this.count = count;
+         this.sum = sum;
+         this.max = max;
+      }
+
+      /**
+       * @return The number of recorded values
+       */
+      public long getCount() {
+         return count;
+      }
+
+      /**
+       * @return The sum of the recorded values
+       */
+      public long getSum() {
+         return sum;
+      }
+
+      /**
+       * @return The average of the recorded values, or 0 if nothing is recorded.
+       */
+      public double getMean() {
+         return (count == 0) ? 0 : (double) sum / count;
+      }
+
+      /**
+       * @return The largest recorded value
+       */
+      public long getMax() {
+         return max;
+      }
+
+      /**
+       * @return The median (upper bound of its bucket)
+       */
+      public long getP50() {
+         return percentile(0.5);
+      }
+
+      /**
+       * @return The 90th percentile (upper bound of its bucket)
+       */
+      public long getP90() {
+         return percentile(0.9);
+      }
+
+      /**
+       * @return The 99th percentile (upper bound of its bucket)
+       */
+      public long getP99() {
+         return percentile(0.99);
+      }
+
+      /**
+       * @return The counts of the buckets. Index 0 holds the 0, index i the values from 2^(i-1) to 2^i - 1.
+       */
+      public long[] getBuckets() {
+         return counts.clone();
+      }
+
+      /**
+       * Estimate a percentile.
+       * 
+       * @param fraction The wanted percentile as fraction [0..1]
+       * @return The upper bound of the bucket containing the percentile, but not more than the maximum.
+       */
+      public long percentile(double fraction) {
+         long total = 0;
+         for (long c : counts) total += c;
+         if (total == 0) return 0;
+         long wanted = (long) Math.ceil(fraction * total);
+         long seen = 0;
+         for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted) return (i == 0) ? 0 : Math.min(max, (i == 63) ? Long.MAX_VALUE : (1L << i) - 1);
+         }
+         return max;
+      }
+
+      @Override
+      public String toString() {
+         return "count=" + count + " mean=" + (long) getMean() + " p50=" + getP50() + " p90=" + getP90() + " p99=" + getP99() + " max=" + max;
+      }
+   }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Iterator over the results of tasks, executed in parallel by a {@link WaitingNamedExecutorService}, but delivered in the order of the tasks.<br>
+ * The tasks are taken from the source not before they are needed. At most 'window' tasks are submitted ahead of the consumer, so the memory stays flat even for millions of tasks.
+ * A slow task delays the delivery of the following results, the other tasks within the window keep running.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-13 uh First try
+ * @param <T> The type of the task's results
+ */
+public class OrderedResultIterator<T> implements Iterator<T> {
+   private final WaitingNamedExecutorService     executor;
+   private final Iterator<? extends Callable<T>> source;
+   private final int                             window;
+   private final ArrayDeque<Future<T>>           pending;
+
+   /**
+    * Instance a new iterator.
+    * 
+    * @param executor The executor to run the tasks
+    * @param tasks The tasks in the wanted order of the results
+    * @param window Maximum number of tasks submitted ahead of the consumer (reorder window)
+    */
+   public OrderedResultIterator(WaitingNamedExecutorService executor, Iterator<? extends Callable<T>> tasks, int window) {
+      this.executor = executor;
+      this.source = tasks;
+      this.window = (window < 1) ? 1 : window;
+      pending = new ArrayDeque<>(this.window);
+   }
+
+   @Override
+   public boolean hasNext() {
+      fill();
+      return !pending.isEmpty();
+   }
+
+   /**
+    * Get the next result. Waits until the task is finished.
+    * 
+    * @throws RuntimeException if the task failed (the cause is the task's exception) or the thread was interrupted.
+    */
+   @Override
+   public T next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      Future<T> head = pending.poll();
+      fill(); // keep the window filled while waiting
+      try {
+         return head.get();
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Cancel all pending tasks. Tasks not taken from the source are ignored.
+    */
+   public void cancel() {
+      Future<T> future;
+      while ((future = pending.poll()) != null) future.cancel(false);
+   }
+
+   /**
+    * Helper to submit tasks until the window is full.
+    */
+   private void fill() {
+      while ((pending.size() < window) && source.hasNext()) {
+         Callable<T> task = source.next();
+         Future<T> future = executor.submit(task);
+         if (future == null) throw new IllegalStateException("The task \"" + task + "\" could not be taken.");
+         pending.add(future);
+      }
+   }
+}
@@ -17,15 +17,29 @@
  */
 package de.hebis.it.hds.tools.concurrent;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,7 +47,9 @@ import org.apache.logging.log4j.Logger;
 /**
  * A waiting and named {@link ExecutorService}. <br>
  * * "waiting" The input queue has is a {@link BlockingQueue} <br>
- * * "named" The threads handled by this executer get are named to ease debugging.
+ * * "named" The threads handled by this executer get are named to ease debugging.<br>
+ * The admission to the input queue is guarded by a {@link Semaphore}. A producer blocks exactly until a slot is freed by a finished task. There is no global lock, so several producers may
+ * submit concurrently.
  * 
  * @author Uwe 20.05.2016
  * @version 2017-03-22 uh revised
@@ -42,9 +58,20 @@ import org.apache.logging.log4j.Logger;
 public class WaitingNamedExecutorService implements ThreadFactory {
    private static final Logger        LOG                  = LogManager.getLogger(WaitingNamedExecutorService.class);
    private static final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
+   private static final long          TUNING_INTERVAL      = TimeUnit.SECONDS.toNanos(1);
    private String                     myName               = "unset";
    private BlockingQueue<Runnable>    queue                = null;
-   private ExecutorService            executor             = null;
+   private Semaphore                  admission            = null;
+   private ThreadPoolExecutor         executor             = null;
+   private ThreadFactory              virtualThreadFactory = null;
+   private ExecutorMetrics            metrics              = null;
+   private HillClimbingController     controller           = null;
+   private AtomicLong                 nextTuning           = null;
+   private long                       lastTuning           = 0;
+   private long                       lastCompleted        = 0;
+   private LongHistogram.Snapshot     lastQueueWait        = null;
+   private LongHistogram.Snapshot     lastRunTime          = null;
+   private CompletableFuture<Void>    termination          = new CompletableFuture<>();
 
    /**
     * Instance a new ExecutorService.
@@ -54,79 +81,305 @@ public class WaitingNamedExecutorService implements ThreadFactory {
     * @param paralelthreads Size of the executor service
     */
    public WaitingNamedExecutorService(String executorName, int queuelength, int paralelthreads) {
+      this(executorName, queuelength, paralelthreads, false);
+   }
+
+   /**
+    * Instance a new ExecutorService, which adapts the number of threads to the workload.<br>
+    * Once per second the throughput and the queue wait are measured, and a {@link HillClimbingController} moves the number of threads between the given bounds. The admission is
+    * sized for the maximum (queuelength + maxthreads).
+    * 
+    * @param executorName Name for the executor and the handled treads
+    * @param queuelength Length of the upstream blocking queue
+    * @param minthreads Lower bound of the executor size
+    * @param maxthreads Upper bound of the executor size
+    */
+   public WaitingNamedExecutorService(String executorName, int queuelength, int minthreads, int maxthreads) {
+      this(executorName, queuelength, Math.max(minthreads, maxthreads), false);
+      controller = new HillClimbingController(minthreads, maxthreads, 0.01);
+      resize(controller.getThreads());
+      lastTuning = System.nanoTime();
+      nextTuning = new AtomicLong(lastTuning + TUNING_INTERVAL);
+      lastQueueWait = metrics.getQueueWait();
+      lastRunTime = metrics.getRunTime();
+   }
+
+   /**
+    * Instance a new ExecutorService, optional running each task on its own virtual thread.<br>
+    * In the virtual thread mode there is no fixed pool. Every admitted task is started at once, the admission (queuelength + paralelthreads) remains as backpressure and limits the
+    * number of tasks in flight.<br>
+    * Virtual threads needs a JVM 21 or newer. On older JVMs a warning is logged and platform threads are used instead.
+    * 
+    * @param executorName Name for the executor and the handled treads
+    * @param queuelength Length of the upstream blocking queue
+    * @param paralelthreads Size of the executor service
+    * @param virtualThreads TRUE to run each task on a new virtual thread
+    */
+   public WaitingNamedExecutorService(String executorName, int queuelength, int paralelthreads, boolean virtualThreads) {
       if (executorName != null) myName = executorName;
       if (queuelength < 1) queuelength = 1;
       if (paralelthreads < 1) paralelthreads = 1;
-      queue = new ArrayBlockingQueue<>(queuelength);
-      executor = new ThreadPoolExecutor(paralelthreads, paralelthreads, 10, TimeUnit.HOURS, queue, this);
+      // One permit for each slot in the queue and for each running task. So the queue itself can never overflow.
+      admission = new Semaphore(queuelength + paralelthreads);
+      metrics = new ExecutorMetrics(myName, () -> queue.size());
+      if (virtualThreads) {
+         virtualThreadFactory = virtualThreadFactory(myName + "-");
+         // no idle workers, every task gets a new thread
+         queue = new SynchronousQueue<>();
+         executor = new AdmissionExecutor(0, Integer.MAX_VALUE, 0, queue);
+      } else {
+         queue = new ArrayBlockingQueue<>(queuelength + paralelthreads);
+         executor = new AdmissionExecutor(paralelthreads, paralelthreads, TimeUnit.HOURS.toNanos(10), queue);
+      }
+      metrics.register();
    }
 
    /**
-    * Take a new {@link Runnable}. Calls {@link ExecutorService#execute(Runnable)}
-    * 
-    * @param task The runnable
+    * The executor behind the service. It releases the admission permit of each finished task and feeds the {@link ExecutorMetrics}.
     */
-   public synchronized void execute(Runnable task) {
-      if (waitOnQueue()) {
-         if (LOG.isTraceEnabled()) LOG.trace(myName + ": Add runnable \"" + task.toString() + "\" to queue.");
+   private class AdmissionExecutor extends ThreadPoolExecutor {
+
+      AdmissionExecutor(int corePoolSize, int maximumPoolSize, long keepAliveNanos, BlockingQueue<Runnable> workQueue) {
+         super(corePoolSize, maximumPoolSize, keepAliveNanos, TimeUnit.NANOSECONDS, workQueue, WaitingNamedExecutorService.this);
+      }
+
+      @Override
+      protected void beforeExecute(Thread worker, Runnable task) {
+         Admitted admitted = (Admitted) task;
+         admitted.started = System.nanoTime();
+         metrics.started(worker, admitted.started - admitted.admitted, admitted.started);
+      }
+
+      @Override
+      protected void afterExecute(Runnable task, Throwable t) {
          try {
-            executor.execute(task);
-         } catch (Exception e) {
-            LOG.warn(myName + "(execute) Error: \"" + e.toString() + "\" Try to repeat.");
-            execute(task);
+            Admitted admitted = (Admitted) task;
+            metrics.finished(Thread.currentThread(), System.nanoTime() - admitted.started, (t != null) || failed(admitted.task));
+         } finally {
+            admission.release();
+         }
+         if (controller != null) tune();
+      }
+
+      @Override
+      protected void terminated() {
+         metrics.unregister();
+         termination.complete(null);
+      }
+   }
+
+   /**
+    * Helper for the adaptive mode: Feed the controller with the measurements of the last interval and resize the pool.<br>
+    * Called by the workers after each task, but does its work only once per interval.
+    */
+   private void tune() {
+      long now = System.nanoTime();
+      long due = nextTuning.get();
+      if ((now < due) || !nextTuning.compareAndSet(due, now + TUNING_INTERVAL)) return;
+      synchronized (controller) {
+         long completed = metrics.getCompletedCount();
+         LongHistogram.Snapshot queueWait = metrics.getQueueWait();
+         LongHistogram.Snapshot runTime = metrics.getRunTime();
+         long count = Math.max(1, runTime.getCount() - lastRunTime.getCount());
+         long meanQueueWait = (queueWait.getSum() - lastQueueWait.getSum()) / Math.max(1, queueWait.getCount() - lastQueueWait.getCount());
+         long meanRunTime = (runTime.getSum() - lastRunTime.getSum()) / count;
+         int before = executor.getCorePoolSize();
+         int threads = controller.update(completed - lastCompleted, now - lastTuning, meanQueueWait, meanRunTime);
+         if (threads != before) {
+            if (LOG.isDebugEnabled()) LOG.debug(myName + ": resize from " + before + " to " + threads + " threads.");
+            resize(threads);
          }
-         return;
+         lastTuning = now;
+         lastCompleted = completed;
+         lastQueueWait = queueWait;
+         lastRunTime = runTime;
+      }
+   }
+
+   /**
+    * Helper to change the size of the pool. Superfluous threads terminate, when they become idle.
+    * 
+    * @param threads The new size
+    */
+   private void resize(int threads) {
+      if (threads > executor.getMaximumPoolSize()) {
+         executor.setMaximumPoolSize(threads);
+         executor.setCorePoolSize(threads);
+      } else {
+         executor.setCorePoolSize(threads);
+         executor.setMaximumPoolSize(threads);
+      }
+   }
+
+   /**
+    * Wrapper to remember the admission time of a task.
+    */
+   private static class Admitted implements Runnable {
+      final Runnable task;
+      final long     admitted = System.nanoTime();
+      long           started  = 0;
+
+      Admitted(Runnable task) {
+         this.task = task;
+      }
+
+      @Override
+      public void run() {
+         task.run();
+      }
+
+      @Override
+      public String toString() {
+         return task.toString();
+      }
+   }
+
+   /**
+    * Take a new {@link Runnable}. Calls {@link ExecutorService#execute(Runnable)}<br>
+    * Waits until the input queue can take the task.
+    * 
+    * @param task The runnable
+    */
+   public void execute(Runnable task) {
+      try {
+         if (admit(task, -1)) return;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, task couldn't placed into the input queue.");
       }
       LOG.warn("Runnable: " + task + " could not be taken.");
    }
 
    /**
-    * Take a new {@link Callable}. Calls {@link ExecutorService#submit(Callable)}
+    * Take a new {@link Runnable}, but wait at most the given time for a free slot in the input queue.
+    * 
+    * @param task The runnable
+    * @param timeout The maximum time to wait
+    * @param unit The time unit of the timeout argument
+    * @return TRUE if the task was taken, FALSE if the time elapsed or the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public boolean execute(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+      return admit(task, Math.max(0, unit.toNanos(timeout)));
+   }
+
+   /**
+    * Take a new {@link Runnable}. Waits until the input queue can take the task, but honors interrupts.
+    * 
+    * @param task The runnable
+    * @return TRUE if the task was taken, FALSE if the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public boolean executeInterruptibly(Runnable task) throws InterruptedException {
+      return admit(task, -1);
+   }
+
+   /**
+    * Take a new {@link Callable}. Calls {@link ExecutorService#submit(Callable)}<br>
+    * Waits until the input queue can take the task.
     * 
     * @param task The callable
     * @param <T> T - the type of the task's result
     * 
     * @return Der A Future oft the callables result or NULL if the callable couldn't be taken.
     */
-   public synchronized <T> Future<T> submit(Callable<T> task) {
-      if (waitOnQueue()) {
-         if (LOG.isTraceEnabled()) LOG.trace(myName + ": Callable \"" + task.toString() + "\" wird in die Warteschlange eingetragen.");
-         try {
-            return executor.submit(task);
-         } catch (Exception e) {
-            LOG.warn(myName + "(submit): Fehler \"" + e.toString() + "\" Versuche Wiederholung.");
-            return submit(task);
-         }
+   public <T> Future<T> submit(Callable<T> task) {
+      try {
+         Future<T> future = submitInterruptibly(task);
+         if (future != null) return future;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, task couldn't placed into the input queue.");
       }
       LOG.warn("Callable:" + task + "konnte nicht im ThreadPool aufgenommen werden.");
       return null;
    }
 
+   /**
+    * Take a new {@link Callable}, but wait at most the given time for a free slot in the input queue.
+    * 
+    * @param task The callable
+    * @param timeout The maximum time to wait
+    * @param unit The time unit of the timeout argument
+    * @param <T> T - the type of the task's result
+    * @return A Future of the callables result or NULL if the time elapsed or the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public <T> Future<T> submit(Callable<T> task, long timeout, TimeUnit unit) throws InterruptedException {
+      FutureTask<T> future = new FutureTask<>(task);
+      return admit(future, Math.max(0, unit.toNanos(timeout))) ? future : null;
+   }
+
+   /**
+    * Take a new {@link Callable}. Waits until the input queue can take the task, but honors interrupts.
+    * 
+    * @param task The callable
+    * @param <T> T - the type of the task's result
+    * @return A Future of the callables result or NULL if the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public <T> Future<T> submitInterruptibly(Callable<T> task) throws InterruptedException {
+      FutureTask<T> future = new FutureTask<>(task);
+      return admit(future, -1) ? future : null;
+   }
+
+   /**
+    * Execute the tasks in parallel, but deliver the results in the order of the tasks. (see {@link OrderedResultIterator})
+    * 
+    * @param tasks The tasks in the wanted order of the results
+    * @param window Maximum number of tasks submitted ahead of the consumer
+    * @param <T> T - the type of the task's result
+    * @return A sequential stream of the results. Closing the stream cancels the pending tasks.
+    */
+   public <T> Stream<T> submitOrdered(Iterator<? extends Callable<T>> tasks, int window) {
+      OrderedResultIterator<T> results = new OrderedResultIterator<>(this, tasks, window);
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false).onClose(results::cancel);
+   }
+
+   /**
+    * Apply a function in parallel to all elements of a stream, but deliver the results in the order of the input.<br>
+    * Example: Convert the records of a file and write them in the original order.
+    * 
+    * @param input The elements to process
+    * @param function The function to apply to each element
+    * @param window Maximum number of elements processed ahead of the consumer
+    * @param <I> I - the type of the input
+    * @param <T> T - the type of the results
+    * @return A sequential stream of the results. Closing the stream cancels the pending tasks.
+    */
+   public <I, T> Stream<T> mapOrdered(Stream<I> input, Function<? super I, ? extends T> function, int window) {
+      Iterator<I> source = input.iterator();
+      Iterator<Callable<T>> tasks = new Iterator<Callable<T>>() {
+         @Override
+         public boolean hasNext() {
+            return source.hasNext();
+         }
+
+         @Override
+         public Callable<T> next() {
+            I element = source.next();
+            return () -> function.apply(element);
+         }
+      };
+      return submitOrdered(tasks, window).onClose(input::close);
+   }
+
    /**
     * Notify the executor service to shutdown.<br>
-    * Differing to {@link ExecutorService#shutdown()} this method is waiting, till all tasks are finished.
+    * Differing to {@link ExecutorService#shutdown()} this method is waiting, till all tasks are finished.<br>
+    * It returns as soon as the last task is finished.
     * 
     */
-   public synchronized void shutdown() {
+   public void shutdown() {
       if (LOG.isDebugEnabled()) LOG.debug(myName + " is shuting down. (after all tasks are finished");
       executor.shutdown();
-      while (queue.size() > 0) { // While there are still tasks in the input queue;
-         try {
-            if (LOG.isTraceEnabled()) LOG.trace(myName + ": shutdown executor: The queue still has " + queue.size() + " entries");
-            Thread.sleep(1000);
-         } catch (InterruptedException e) {
-            executor.shutdownNow();
-            LOG.warn(myName + "interupt received, immidiate shutdown.");
-            return;
-         }
-      }
       int count = 0;
-      while (!executor.isTerminated()) { // The input queue is empty, just wait for the last Tasks.
+      while (!executor.isTerminated()) { // Wait for the queued and running tasks.
          try {
             if (LOG.isInfoEnabled()) LOG.info(myName + ": waiting for now  " + (count++ * 10) + " seconds to shutdown the executor");
             executor.awaitTermination(10, TimeUnit.SECONDS);
          } catch (InterruptedException e) {
-            executor.shutdownNow();
+            cancel(executor.shutdownNow());
             LOG.warn(myName + "interupt received, immidiate shutdown.");
             return;
          }
@@ -134,23 +387,78 @@ public class WaitingNamedExecutorService implements ThreadFactory {
    }
 
    /**
-    * Helper to let new task wait until the input queue can take a new entry.st.
+    * Notify the executor service to shutdown, and wait at most the given time for the tasks to finish.<br>
+    * When the time elapses, the queued tasks are cancelled and the running tasks are interrupted.
     * 
-    * @return Normally TRUE, but FALSE if an {@link InterruptedException} was received.
+    * @param timeout The maximum time to wait
+    * @param unit The time unit of the timeout argument
+    * @return TRUE if all tasks finished in time, FALSE if tasks were cancelled.
     */
-   private boolean waitOnQueue() {
-      if (executor.isShutdown() || executor.isTerminated()) return false;
-      if (queue.remainingCapacity() > 0) return true;
-      while (queue.remainingCapacity() < 1) {
-         try {
-            if (LOG.isTraceEnabled()) LOG.trace(myName + ": The queue (length: " + queue.size() + ") id full.  Waiting two seconds.");
-            Thread.sleep(2000);
-         } catch (InterruptedException e) {
-            LOG.warn(myName + "interupt received, task couldn't placed into the input queue.");
-            return false;
-         }
+   public boolean shutdown(long timeout, TimeUnit unit) {
+      if (LOG.isDebugEnabled()) LOG.debug(myName + " is shuting down. (within " + timeout + " " + unit + ")");
+      executor.shutdown();
+      try {
+         if (executor.awaitTermination(timeout, unit)) return true;
+         LOG.warn(myName + ": deadline reached, pending tasks are cancelled.");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         LOG.warn(myName + "interupt received, immidiate shutdown.");
+      }
+      cancel(executor.shutdownNow());
+      return false;
+   }
+
+   /**
+    * Notify the executor service to shutdown, without waiting.<br>
+    * The returned future completes, when the last task is finished. No thread is blocked meanwhile.
+    * 
+    * @return Future completing on termination of the executor
+    */
+   public CompletableFuture<Void> shutdownAsync() {
+      if (LOG.isDebugEnabled()) LOG.debug(myName + " is shuting down. (asynchronous)");
+      executor.shutdown();
+      return termination;
+   }
+
+   /**
+    * Helper to cancel tasks removed from the queue, so that nobody waits for their results.
+    * 
+    * @param dropped The tasks never started
+    */
+   private static void cancel(List<Runnable> dropped) {
+      for (Runnable task : dropped) {
+         Runnable inner = (task instanceof Admitted) ? ((Admitted) task).task : task;
+         if (inner instanceof Future) ((Future<?>) inner).cancel(false);
+      }
+   }
+
+   /**
+    * Helper to let a new task wait until the input queue can take a new entry, and then hand it to the executor.
+    * 
+    * @param task The task to place into the input queue
+    * @param timeoutNanos Maximum time to wait for a free slot, negative values mean 'no limit'.
+    * @return TRUE if the task was taken, FALSE if the time elapsed or the executor is shut down.
+    * @throws InterruptedException if interrupted while waiting
+    */
+   private boolean admit(Runnable task, long timeoutNanos) throws InterruptedException {
+      if (executor.isShutdown()) return false;
+      long waitNanos = 0;
+      if (!admission.tryAcquire()) {
+         if (LOG.isTraceEnabled()) LOG.trace(myName + ": The queue (length: " + queue.size() + ") is full. Waiting for a free slot.");
+         long start = System.nanoTime();
+         if (timeoutNanos < 0) admission.acquire();
+         else if (!admission.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) return false;
+         waitNanos = System.nanoTime() - start;
+      }
+      if (LOG.isTraceEnabled()) LOG.trace(myName + ": Add task \"" + task.toString() + "\" to queue.");
+      try {
+         metrics.admitted(waitNanos);
+         executor.execute(new Admitted(task));
+         return true;
+      } catch (RejectedExecutionException e) { // shut down while waiting
+         admission.release();
+         return false;
       }
-      return true;
    }
 
    /**
@@ -163,9 +471,138 @@ public class WaitingNamedExecutorService implements ThreadFactory {
     */
    @Override
    public Thread newThread(Runnable task) {
-      Thread newThread = defaultThreadFactory.newThread(task);
+      if (virtualThreadFactory != null) return virtualThreadFactory.newThread(task);
+      Thread newThread = defaultThreadFactory.newThread(() -> {
+         try {
+            task.run();
+         } finally {
+            metrics.workerStopped(Thread.currentThread());
+         }
+      });
       newThread.setName(newThread.getName().replaceFirst("pool-\\d+-thread", myName));
+      metrics.workerStarted(newThread);
       return newThread;
    }
 
+   /**
+    * Get the instrumentation of this executor.<br>
+    * The same values are published via JMX while the executor is running. (see {@link ExecutorMetrics})
+    * 
+    * @return The live metrics. Use {@link ExecutorMetrics#snapshot()} to get a frozen copy.
+    */
+   public ExecutorMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Helper to detect a {@link Future} finished with an exception.
+    * 
+    * @param task The executed task
+    * @return TRUE if the task is a failed future.
+    */
+   private static boolean failed(Runnable task) {
+      if (!(task instanceof Future)) return false;
+      Future<?> future = (Future<?>) task;
+      if (!future.isDone() || future.isCancelled()) return false;
+      try {
+         future.get();
+         return false;
+      } catch (ExecutionException e) {
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }
+
+   /**
+    * Helper to get a factory for named virtual threads ('prefix#') without a compile time dependency to Java 21.
+    * 
+    * @param prefix The prefix of the thread names
+    * @return The factory or NULL, if the JVM doesn't support virtual threads.
+    */
+   private static ThreadFactory virtualThreadFactory(String prefix) {
+      try {
+         Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+         return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+         LOG.warn(prefix + ": Virtual threads are not supported by this JVM (" + e.toString() + "). Platform threads are used.");
+         return null;
+      }
+   }
+
+   /**
+    * Poor man's throughput test.<br>
+    * Runs the same workload through the former path (synchronized submit, polling the queue every two seconds) and through the semaphore based admission.
+    * 
+    * @param args [number of tasks] [number of producers]
+    */
+   public static void main(String[] args) throws Exception {
+      int tasks = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+      int producers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+      int queuelength = 10;
+      int threads = 4;
+      Runnable work = () -> {
+         try {
+            Thread.sleep(2);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      };
+      // former path
+      BlockingQueue<Runnable> oldQueue = new ArrayBlockingQueue<>(queuelength);
+      ThreadPoolExecutor oldExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.HOURS, oldQueue);
+      Object oldLock = new Object();
+      long oldNanos = measure(tasks, producers, () -> {
+         synchronized (oldLock) {
+            while (true) {
+               while (oldQueue.remainingCapacity() < 1) Thread.sleep(2000);
+               try {
+                  oldExecutor.execute(work);
+                  return null;
+               } catch (RejectedExecutionException e) {
+                  // the former code retried
+               }
+            }
+         }
+      });
+      oldExecutor.shutdown();
+      oldExecutor.awaitTermination(1, TimeUnit.HOURS);
+      // new path
+      WaitingNamedExecutorService newExecutor = new WaitingNamedExecutorService("bench", queuelength, threads);
+      long newNanos = measure(tasks, producers, () -> newExecutor.executeInterruptibly(work));
+      newExecutor.shutdown();
+      System.out.println(tasks + " tasks, " + producers + " producers, queue " + queuelength + ", " + threads + " threads");
+      System.out.println("polling   : " + (oldNanos / 1000000) + " ms, " + (tasks * 1000000000L / oldNanos) + " tasks/s");
+      System.out.println("semaphore : " + (newNanos / 1000000) + " ms, " + (tasks * 1000000000L / newNanos) + " tasks/s");
+   }
+
+   /**
+    * Helper for {@link #main(String[])}: Lets some producers share the given number of submits.
+    * 
+    * @param tasks Total number of submits
+    * @param producers Number of producer threads
+    * @param submit The submit to measure
+    * @return Elapsed time in nanoseconds
+    */
+   private static long measure(int tasks, int producers, Callable<?> submit) throws InterruptedException {
+      Thread[] producerThreads = new Thread[producers];
+      long start = System.nanoTime();
+      for (int p = 0; p < producers; p++) {
+         int share = tasks / producers + ((p < tasks % producers) ? 1 : 0);
+         producerThreads[p] = new Thread(() -> {
+            try {
+               for (int i = 0; i < share; i++) submit.call();
+            } catch (Exception e) {
+               LOG.warn("Producer aborted: " + e.toString());
+            }
+         });
+         producerThreads[p].start();
+      }
+      for (Thread producer : producerThreads) producer.join();
+      return System.nanoTime() - start;
+   }
+
 }
@@ -21,17 +21,24 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Simple data type for a International Standard Book Number (ISBN-10 + ISBN-13)
+ * Simple data type for a International Standard Book Number (ISBN-10 + ISBN-13)<br>
+ * For mass data use the primitive form: {@link #parse(CharSequence)} returns the ISBN-13 packed into a long, the static helpers work on this form.
  * 
  * @author Uwe 2013-01-09
  * @version 2017-03-23 uh revised and moved to toolkit
  * 
  */
 public class ISBN {
-   static final Logger LOG     = LogManager.getLogger(ISBN.class);
-   String              isbnRaw = null;
-   String              isbn10  = null;
-   String              isbn13  = null;
+   static final Logger       LOG     = LogManager.getLogger(ISBN.class);
+   /** Primitive form: no ISBN found */
+   public static final long  NONE    = -1L;
+   /** Primitive form: flag for a correct check digit in the original text */
+   public static final long  VALID   = 1L << 62;
+   /** Primitive form: the mask for the ISBN-13 */
+   private static final long VALUE   = (1L << 44) - 1;
+   String                    isbnRaw = null;
+   String                    isbn10  = null;
+   String                    isbn13  = null;
 
    /**
     * Constructs new ISBN
@@ -68,31 +75,27 @@ public class ISBN {
 
    /**
     * Extracting the most likely ISBN from a given Text.<br>
-    * 1. extract all hyphens ('-')<br>
-    * 2. replace all invalid characters with a space<br>
-    * 3. split the text in parts<br>
-    * 4. return the first part which has the length of 10 or 13<br>
-    * 5. if no isbn with exact length is found, return the part with the nearest length<br>
+    * 1. ignore all hyphens ('-')<br>
+    * 2. split the text in parts of digits and 'X' (case insensitive)<br>
+    * 3. return the first part which has the length of 10 or 13<br>
     * 
     * @param isbnText Text containing a ISBN
-    * @return Most likely (ISBN) part of the given Text (Hyphens are striped)
+    * @return Most likely (ISBN) part of the given Text (Hyphens are striped), or "" if no part has the length of an ISBN.
     */
    private static String getClean(String isbnText) {
-      int offset = Integer.MAX_VALUE - 14;
-      int pos = 0;
-      String tmp = isbnText.replace("-", "").toUpperCase().replaceAll("[^\\dX]", " ");
-      String[] parts = tmp.trim().split(" ");
-      for (int i = 0; i < parts.length; i++) {
-         int len = parts[i].length();
-         if ((len == 10) || (len == 13)) return parts[i];
-         if ((len > 10 - offset) && (len < 13 + offset)) {
-            pos = i; // remember position
-            // the next parts have to be closer
-            if (len > 13) offset = len - 13 - 1;
-            else if (len < 10) offset = 10 - len - 1;
+      StringBuilder part = new StringBuilder(16);
+      int length = isbnText.length();
+      for (int i = 0; i <= length; i++) {
+         char c = (i < length) ? isbnText.charAt(i) : ' ';
+         if (c == '-') continue;
+         if (((c >= '0') && (c <= '9')) || (c == 'X') || (c == 'x')) {
+            part.append(Character.toUpperCase(c));
+         } else {
+            if ((part.length() == 10) || (part.length() == 13)) return part.toString();
+            part.setLength(0);
          }
       }
-      return parts[pos];
+      return "";
    }
 
    /**
@@ -133,6 +136,173 @@ public class ISBN {
       return isbn13;
    }
 
+   /**
+    * Parses the first ISBN in a text, in a single pass and without creating objects.<br>
+    * The ISBN is found the same way as by the constructor. The result of {@link #toString10(long)} and {@link #toString13(long)} is the same as of {@link #toString10()} and
+    * {@link #toString13()}, as long as the ISBN consists of digits. (An 'X' is accepted only as check digit of an ISBN-10.)
+    * 
+    * @param text A text, which should contain a ISBN
+    * @return The ISBN-13 with recomputed check digit as number, plus the flag {@link #VALID} if the check digit in the text was correct. {@link #NONE} if no proper ISBN was
+    * found.
+    */
+   public static long parse(CharSequence text) {
+      long digits = 0;
+      int length = 0;
+      int xPos = -1;
+      int size = text.length();
+      for (int i = 0; i <= size; i++) {
+         char c = (i < size) ? text.charAt(i) : ' ';
+         if (c == '-') continue;
+         if (((c >= '0') && (c <= '9')) || (c == 'X') || (c == 'x')) {
+            if ((c > '9') && (xPos < 0)) xPos = length;
+            if (length < 13) digits = digits * 10 + ((c <= '9') ? c - '0' : 0);
+            length++;
+         } else {
+            if ((length == 10) || (length == 13)) return pack(digits, length, xPos);
+            digits = 0;
+            length = 0;
+            xPos = -1;
+         }
+      }
+      return NONE;
+   }
+
+   /**
+    * Parses the first ISBN in bytes (ASCII or UTF-8), in a single pass and without creating objects.
+    * 
+    * @param data The buffer with the text
+    * @param from The start of the text
+    * @param to The end of the text (exclusive)
+    * @return The ISBN-13 as number, see {@link #parse(CharSequence)}
+    */
+   public static long parse(byte[] data, int from, int to) {
+      long digits = 0;
+      int length = 0;
+      int xPos = -1;
+      for (int i = from; i <= to; i++) {
+         byte c = (i < to) ? data[i] : (byte) ' ';
+         if (c == '-') continue;
+         if (((c >= '0') && (c <= '9')) || (c == 'X') || (c == 'x')) {
+            if ((c > '9') && (xPos < 0)) xPos = length;
+            if (length < 13) digits = digits * 10 + ((c <= '9') ? c - '0' : 0);
+            length++;
+         } else {
+            if ((length == 10) || (length == 13)) return pack(digits, length, xPos);
+            digits = 0;
+            length = 0;
+            xPos = -1;
+         }
+      }
+      return NONE;
+   }
+
+   /**
+    * Helper to build the primitive form
+    * 
+    * @param digits The digits of the part, an 'X' as '0'
+    * @param length The number of digits (10 or 13)
+    * @param xPos The position of the first 'X', or -1
+    * @return The ISBN-13 as number, see {@link #parse(CharSequence)}
+    */
+   static long pack(long digits, int length, int xPos) {
+      if (length == 10) {
+         if ((xPos >= 0) && (xPos != 9)) return NONE;
+         long body = digits / 10;
+         int check = (xPos == 9) ? 10 : (int) (digits % 10);
+         long isbn = (978000000000L + body) * 10;
+         isbn += checkDigit13(isbn / 10);
+         return (check == checkDigit10(body)) ? isbn | VALID : isbn;
+      }
+      if (xPos >= 0) return NONE;
+      long isbn = digits - (digits % 10);
+      isbn += checkDigit13(isbn / 10);
+      return (isbn == digits) ? isbn | VALID : isbn;
+   }
+
+   /**
+    * @param isbn The primitive form, see {@link #parse(CharSequence)}
+    * @return TRUE if an ISBN was found and its check digit was correct.
+    */
+   public static boolean isValid(long isbn) {
+      return (isbn >= 0) && ((isbn & VALID) != 0);
+   }
+
+   /**
+    * @param isbn The primitive form, see {@link #parse(CharSequence)}
+    * @return The 13 digits of the ISBN-13 as number (without flags), or {@link #NONE}
+    */
+   public static long toLong13(long isbn) {
+      return (isbn < 0) ? NONE : isbn & VALUE;
+   }
+
+   /**
+    * Get as ISBN-13
+    * 
+    * @param isbn The primitive form, see {@link #parse(CharSequence)}
+    * @return Long ISBN with recomputed check digit. Or NULL for {@link #NONE}
+    */
+   public static String toString13(long isbn) {
+      if (isbn < 0) return null;
+      char[] chars = new char[13];
+      long rest = isbn & VALUE;
+      for (int i = 12; i >= 0; i--) {
+         chars[i] = (char) ('0' + rest % 10);
+         rest /= 10;
+      }
+      return new String(chars);
+   }
+
+   /**
+    * Get as ISBN-10
+    * 
+    * @param isbn The primitive form, see {@link #parse(CharSequence)}
+    * @return Short ISBN with recomputed check digit. (Digits 4 to 12 of the ISBN-13, the same as {@link #toString10()}) Or NULL for {@link #NONE}
+    */
+   public static String toString10(long isbn) {
+      if (isbn < 0) return null;
+      char[] chars = new char[10];
+      long body = ((isbn & VALUE) / 10) % 1000000000L;
+      int check = checkDigit10(body);
+      chars[9] = (check == 10) ? 'X' : (char) ('0' + check);
+      for (int i = 8; i >= 0; i--) {
+         chars[i] = (char) ('0' + body % 10);
+         body /= 10;
+      }
+      return new String(chars);
+   }
+
+   /**
+    * Computes the check digit of an ISBN-10 (mod 11)
+    * 
+    * @param body The first nine digits as number
+    * @return The check digit, 10 stands for 'X'
+    */
+   public static int checkDigit10(long body) {
+      int sum = 0;
+      long rest = body;
+      for (int weight = 9; weight > 0; weight--) {
+         sum += (int) (rest % 10) * weight;
+         rest /= 10;
+      }
+      return sum % 11;
+   }
+
+   /**
+    * Computes the check digit of an ISBN-13 (mod 10)
+    * 
+    * @param body The first twelve digits as number
+    * @return The check digit
+    */
+   public static int checkDigit13(long body) {
+      int sum = 0;
+      long rest = body;
+      for (int i = 11; i >= 0; i--) {
+         sum += (int) (rest % 10) * ((i % 2 == 0) ? 1 : 3);
+         rest /= 10;
+      }
+      return (10 - (sum % 10)) % 10;
+   }
+
    /**
     * Converter ISBN-10 to ISBN-13
     *
@@ -190,7 +360,7 @@ public class ISBN {
                sum += (i % 2 == 0) ? digit * 1 : digit * 3;
             }
             rest = 10 - (sum % 10);
-            return (char) ((rest == 0) ? '0' : rest + '0');
+            return (char) ((rest == 10) ? '0' : rest + '0');
          default:
             LOG.warn("Method is defined for ISBN-10 or ISBN-13 only.");
             return '#';
@@ -210,14 +380,37 @@ public class ISBN {
       doit("88-14-05814-8", "ISBN-10.");
       doit("041534638X", "ISBN-10.");
       doit("9780415346382", "ISBN-13.");
+      doit("978-3-16-148410-0", "ISBN-13 with check digit 0.");
+      // Benchmark
+      String[] samples = { "978-3-7657-2781-8 (Gb.) : EUR 22.33", "3-16-148410-X", "9780415346382 kart.", "88-14-05814-8 Pp." };
+      for (int round = 0; round < 5; round++) {
+         long start = System.nanoTime();
+         long check = 0;
+         for (int i = 0; i < 1000000; i++) {
+            check += new ISBN(samples[i % samples.length]).toString13().length();
+         }
+         long objects = System.nanoTime() - start;
+         start = System.nanoTime();
+         for (int i = 0; i < 1000000; i++) {
+            check -= (parse(samples[i % samples.length]) >= 0) ? 13 : 0;
+         }
+         long primitive = System.nanoTime() - start;
+         System.out.println(String.format("1000000 ISBNs: objects %d ms, primitive %d ms (check %d)", objects / 1000000, primitive / 1000000, check));
+      }
    }
 
    private static void doit(String test, String msg) {
       System.out.println("\n" + msg + ": " + test);
-      ISBN me = ISBN.valueOf(test);
-      System.out.println("--> " + me.toString());
-      System.out.println("--> ___" + me.toString10());
-      System.out.println("--> " + me.toString13());
+      try {
+         ISBN me = ISBN.valueOf(test);
+         System.out.println("--> " + me.toString());
+         System.out.println("--> ___" + me.toString10());
+         System.out.println("--> " + me.toString13());
+      } catch (NumberFormatException e) {
+         System.out.println("--> " + e.getMessage());
+      }
+      long isbn = parse(test);
+      System.out.println("--> primitive: " + toString10(isbn) + " " + toString13(isbn) + " valid=" + isValid(isbn));
    }
 
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.ids;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds all ISBNs in a text, in one linear pass.<br>
+ * The text is split in parts the same way as by {@link ISBN#parse(CharSequence)}: Hyphens are ignored, all other characters except digits and 'X' separate the parts. Every
+ * part with 10 or 13 characters is a candidate. The candidates are reported in the primitive form of {@link ISBN#parse(CharSequence)}, with the check digit recomputed and the
+ * flag {@link ISBN#VALID} if the check digit was correct.<br>
+ * The subfield delimiter (0x1F) of MARC is a separator, and the subfield code behind it is skipped. So all fields of a record (ISO 2709) can be scanned at once: Start behind
+ * the directory (base address), the digits of leader and directory are no ISBNs.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-09 uh First try
+ */
+public final class IsbnExtractor {
+   private static final char SUBFIELD_DELIMITER = 0x1F;
+
+   /**
+    * Callback for the found ISBNs
+    */
+   @FunctionalInterface
+   public interface Listener {
+      /**
+       * @param isbn The ISBN in the primitive form, see {@link ISBN#parse(CharSequence)}
+       * @param start The position of the first character of the ISBN in the text
+       * @param end The position behind the last character of the ISBN in the text (exclusive)
+       */
+      void found(long isbn, int start, int end);
+   }
+
+   private IsbnExtractor() {
+   }
+
+   /**
+    * Find all ISBNs in a text
+    * 
+    * @param text The text
+    * @param validOnly TRUE to report the ISBNs with correct check digit only.
+    * @param listener The callback for each ISBN
+    * @return The number of ISBNs found
+    */
+   public static int extract(CharSequence text, boolean validOnly, Listener listener) {
+      return scan(text, validOnly, listener, null, null);
+   }
+
+   /**
+    * Find all ISBNs in a text
+    * 
+    * @param text The text
+    * @param validOnly TRUE to report the ISBNs with correct check digit only.
+    * @param isbns Target for the ISBNs in the primitive form. The search stops when the array is full.
+    * @param positions Target for the start and end of each ISBN (two entries per ISBN), or NULL. It needs twice the length of isbns.
+    * @return The number of ISBNs found
+    * @throws IllegalArgumentException If positions is too short
+    */
+   public static int extract(CharSequence text, boolean validOnly, long[] isbns, int[] positions) {
+      checkLengths(isbns, positions);
+      return scan(text, validOnly, null, isbns, positions);
+   }
+
+   /**
+    * Find all ISBNs in a text
+    * 
+    * @param text The text
+    * @return The ISBNs in the primitive form, in the order of the text. (valid or not)
+    */
+   public static long[] extract(CharSequence text) {
+      long[] isbns = new long[text.length() / 10 + 1];
+      return Arrays.copyOf(isbns, scan(text, false, null, isbns, null));
+   }
+
+   /**
+    * Find all ISBNs in bytes (ASCII or UTF-8), e.g. in a record (ISO 2709)
+    * 
+    * @param data The buffer with the text
+    * @param from The start of the text
+    * @param to The end of the text (exclusive)
+    * @param validOnly TRUE to report the ISBNs with correct check digit only.
+    * @param listener The callback for each ISBN, the positions are the positions in the buffer.
+    * @return The number of ISBNs found
+    */
+   public static int extract(byte[] data, int from, int to, boolean validOnly, Listener listener) {
+      return scan(data, from, to, validOnly, listener, null, null);
+   }
+
+   /**
+    * Find all ISBNs in bytes (ASCII or UTF-8), e.g. in a record (ISO 2709)
+    * 
+    * @param data The buffer with the text
+    * @param from The start of the text
+    * @param to The end of the text (exclusive)
+    * @param validOnly TRUE to report the ISBNs with correct check digit only.
+    * @param isbns Target for the ISBNs in the primitive form. The search stops when the array is full.
+    * @param positions Target for the start and end (positions in the buffer) of each ISBN, or NULL. It needs twice the length of isbns.
+    * @return The number of ISBNs found
+    * @throws IllegalArgumentException If positions is too short
+    */
+   public static int extract(byte[] data, int from, int to, boolean validOnly, long[] isbns, int[] positions) {
+      checkLengths(isbns, positions);
+      return scan(data, from, to, validOnly, null, isbns, positions);
+   }
+
+   /**
+    * Helper to validate the targets, report() doesn't check the positions.
+    */
+   private static void checkLengths(long[] isbns, int[] positions) {
+      if ((positions != null) && (positions.length < 2L * isbns.length)) {
+         throw new IllegalArgumentException("Room for " + isbns.length + " ISBNs, but only for " + positions.length + " positions.");
+      }
+   }
+
+   private static int scan(CharSequence text, boolean validOnly, Listener listener, long[] isbns, int[] positions) {
+      int found = 0;
+      long digits = 0;
+      int length = 0;
+      int xPos = -1;
+      int start = 0;
+      int end = 0;
+      if ((isbns != null) && (isbns.length == 0)) return found; // no room
+      int size = text.length();
+      for (int i = 0; i <= size; i++) {
+         char c = (i < size) ? text.charAt(i) : ' ';
+         if (c == '-') continue;
+         if (((c >= '0') && (c <= '9')) || (c == 'X') || (c == 'x')) {
+            if (length == 0) start = i;
+            if ((c > '9') && (xPos < 0)) xPos = length;
+            if (length < 13) digits = digits * 10 + ((c <= '9') ? c - '0' : 0);
+            length++;
+            end = i + 1;
+            continue;
+         }
+         if ((length == 10) || (length == 13)) {
+            found = report(ISBN.pack(digits, length, xPos), start, end, validOnly, found, listener, isbns, positions);
+            if ((isbns != null) && (found == isbns.length)) return found;
+         }
+         digits = 0;
+         length = 0;
+         xPos = -1;
+         if (c == SUBFIELD_DELIMITER) i++; // skip the code
+      }
+      return found;
+   }
+
+   private static int scan(byte[] data, int from, int to, boolean validOnly, Listener listener, long[] isbns, int[] positions) {
+      int found = 0;
+      long digits = 0;
+      int length = 0;
+      int xPos = -1;
+      int start = 0;
+      int end = 0;
+      if ((isbns != null) && (isbns.length == 0)) return found; // no room
+      for (int i = from; i <= to; i++) {
+         byte c = (i < to) ? data[i] : (byte) ' ';
+         if (c == '-') continue;
+         if (((c >= '0') && (c <= '9')) || (c == 'X') || (c == 'x')) {
+            if (length == 0) start = i;
+            if ((c > '9') && (xPos < 0)) xPos = length;
+            if (length < 13) digits = digits * 10 + ((c <= '9') ? c - '0' : 0);
+            length++;
+            end = i + 1;
+            continue;
+         }
+         if ((length == 10) || (length == 13)) {
+            found = report(ISBN.pack(digits, length, xPos), start, end, validOnly, found, listener, isbns, positions);
+            if ((isbns != null) && (found == isbns.length)) return found;
+         }
+         digits = 0;
+         length = 0;
+         xPos = -1;
+         if (c == SUBFIELD_DELIMITER) i++; // skip the code
+      }
+      return found;
+   }
+
+   /**
+    * Helper to pass a candidate to the callback or to the arrays
+    * 
+    * @return The new number of ISBNs found
+    */
+   private static int report(long isbn, int start, int end, boolean validOnly, int found, Listener listener, long[] isbns, int[] positions) {
+      if ((isbn < 0) || (validOnly && !ISBN.isValid(isbn))) return found;
+      if (listener != null) {
+         listener.found(isbn, start, end);
+      } else {
+         isbns[found] = isbn;
+         if (positions != null) {
+            positions[2 * found] = start;
+            positions[2 * found + 1] = end;
+         }
+      }
+      return found + 1;
+   }
+
+   /**
+    * Poor man's test and benchmark
+    * 
+    * @param args All Parameters are ignored
+    */
+   public static void main(String[] args) {
+      String text = "ISBN 978-3-7657-2781-8 (Gb.) : EUR 22.33; ISBN 3-16-148410-X (kart.), 978-3-7657-2781-0 (falsch)\u001fx9780415346382";
+      extract(text, false, (isbn, start, end) -> System.out.println(ISBN.toString13(isbn) + " " + ISBN.isValid(isbn) + " <- '" + text.substring(start, end) + "'"));
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      long[] isbns = new long[8];
+      int[] positions = new int[16];
+      int count = extract(bytes, 0, bytes.length, true, isbns, positions);
+      for (int i = 0; i < count; i++) {
+         System.out.println(ISBN.toString10(isbns[i]) + " at " + positions[2 * i] + "-" + positions[2 * i + 1]);
+      }
+      System.out.println(extract(text, false, new long[0], null) + " " + extract(bytes, 0, bytes.length, false, new long[0], new int[0]) + " " + extract(text, false, new long[1], null)
+            + " (expected 0 0 1)");
+      try {
+         extract("a 3-16-148410-X b 3-16-148410-X", false, new long[4], new int[1]);
+         System.out.println("positions too short, but no exception");
+      } catch (IllegalArgumentException e) {
+         System.out.println("expected: " + e.getMessage());
+      }
+      // Benchmark: one scan against the search for one ISBN after the other
+      for (int round = 0; round < 5; round++) {
+         long start = System.nanoTime();
+         long check = 0;
+         for (int i = 0; i < 200000; i++) {
+            check += extract(text, false, isbns, null);
+         }
+         long scan = System.nanoTime() - start;
+         start = System.nanoTime();
+         for (int i = 0; i < 200000; i++) {
+            for (String part : text.split(";|,|\u001f")) {
+               if (ISBN.parse(part) >= 0) check--;
+            }
+         }
+         long parts = System.nanoTime() - start;
+         System.out.println(String.format("200000 texts: one scan %d ms, split and parse %d ms (check %d)", scan / 1000000, parts / 1000000, check));
+      }
+   }
+}
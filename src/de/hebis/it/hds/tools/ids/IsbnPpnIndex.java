@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.ids;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+import org.marc4j.marc.VariableField;
+
+import de.hebis.it.hds.tools.marc.MarcWrapper;
+
+/**
+ * Read only index from ISBNs to the PPNs of the records carrying them, e.g. to match records of vendors with the catalogue.<br>
+ * The index is built once by a {@link Builder} and stored in a file: Two sorted, parallel arrays of longs, the ISBN-13 (see {@link ISBN#toLong13(long)}) and the IPN (see
+ * {@link XPN#ppnToLong(CharSequence)}). An ISBN with several PPNs has several entries in a row.<br>
+ * The file is mapped, not read. So opening takes only milliseconds, the pages are loaded by the OS when needed and shared by all processes using the same file. The lookups are
+ * binary searches on the mapping, without locks and safe for concurrent use.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-12 uh First try
+ */
+public class IsbnPpnIndex {
+   static final Logger       LOG          = LogManager.getLogger(IsbnPpnIndex.class);
+   /** "HdsIPI1\n" */
+   private static final long MAGIC        = 0x486473495049310AL;
+   /** magic, count */
+   private static final int  HEADERLENGTH = 16;
+   /** Each array is mapped as a whole */
+   private static final int  MAXCOUNT     = Integer.MAX_VALUE / 8;
+   /** ISBN-13 without check digit = 978000000000 + compact form */
+   private static final long PREFIX       = 978000000000L;
+   private final LongBuffer  isbns;
+   private final LongBuffer  ipns;
+   private final int         count;
+
+   private IsbnPpnIndex(LongBuffer isbns, LongBuffer ipns, int count) {
+      this.isbns = isbns;
+      this.ipns = ipns;
+      this.count = count;
+   }
+
+   /**
+    * Open an index
+    * 
+    * @param file The file written by a {@link Builder}
+    * @return The index
+    * @throws IOException If the file can't be mapped or is not an index
+    */
+   public static IsbnPpnIndex open(Path file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         ByteBuffer header = ByteBuffer.allocate(HEADERLENGTH);
+         while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) break;
+         }
+         if (header.hasRemaining() || (header.getLong(0) != MAGIC)) throw new IOException(file + " is not an ISBN index.");
+         long count = header.getLong(8);
+         if ((count < 0) || (count > MAXCOUNT) || (channel.size() != HEADERLENGTH + count * 16)) throw new IOException(file + " is damaged.");
+         LongBuffer isbns = channel.map(FileChannel.MapMode.READ_ONLY, HEADERLENGTH, count * 8).asLongBuffer();
+         LongBuffer ipns = channel.map(FileChannel.MapMode.READ_ONLY, HEADERLENGTH + count * 8, count * 8).asLongBuffer();
+         if (LOG.isDebugEnabled()) LOG.debug(file + ": " + count + " entries mapped.");
+         return new IsbnPpnIndex(isbns, ipns, (int) count);
+      }
+   }
+
+   /**
+    * Build an index from records and open it
+    * 
+    * @param records The records, the stream may be parallel.
+    * @param file The file for the index, an existing file is replaced.
+    * @return The index
+    * @throws IOException If the file can't be written
+    */
+   public static IsbnPpnIndex build(Stream<Record> records, Path file) throws IOException {
+      Builder builder = new Builder();
+      records.forEach(builder::add);
+      builder.write(file);
+      return open(file);
+   }
+
+   /**
+    * @return The number of entries (pairs of ISBN and PPN)
+    */
+   public int size() {
+      return count;
+   }
+
+   /**
+    * @param isbn The ISBN in the primitive form (see {@link ISBN#parse(CharSequence)}) or as plain ISBN-13
+    * @return TRUE if at least one record carries the ISBN
+    */
+   public boolean contains(long isbn) {
+      long key = ISBN.toLong13(isbn);
+      int first = firstIndex(key);
+      return (first < count) && (isbns.get(first) == key);
+   }
+
+   /**
+    * Search for the PPNs of an ISBN, without creating objects.
+    * 
+    * @param isbn The ISBN in the primitive form (see {@link ISBN#parse(CharSequence)}) or as plain ISBN-13
+    * @param target Target for the IPNs (ascending), see {@link XPN#ipnToPpn(long)}. If the array is to small, the rest is dropped.
+    * @return The number of PPNs with the ISBN, may be larger than the target.
+    */
+   public int lookup(long isbn, long[] target) {
+      long key = ISBN.toLong13(isbn);
+      int found = 0;
+      for (int i = firstIndex(key); (i < count) && (isbns.get(i) == key); i++) {
+         if (found < target.length) target[found] = ipns.get(i);
+         found++;
+      }
+      return found;
+   }
+
+   /**
+    * Search for the PPNs of an ISBN
+    * 
+    * @param isbn The ISBN in the primitive form (see {@link ISBN#parse(CharSequence)}) or as plain ISBN-13
+    * @return The IPNs (ascending), an empty array if there are none.
+    */
+   public long[] lookup(long isbn) {
+      long key = ISBN.toLong13(isbn);
+      int first = firstIndex(key);
+      int end = first;
+      while ((end < count) && (isbns.get(end) == key)) end++;
+      long[] result = new long[end - first];
+      for (int i = first; i < end; i++) result[i - first] = ipns.get(i);
+      return result;
+   }
+
+   /**
+    * Search for the PPNs of an ISBN
+    * 
+    * @param isbn A text with the ISBN (10 or 13 digits), see {@link ISBN#parse(CharSequence)}
+    * @return The PPNs, an empty list if there are none.
+    */
+   public List<String> getPpns(CharSequence isbn) {
+      long[] found = lookup(ISBN.parse(isbn));
+      List<String> ppns = new ArrayList<>(found.length);
+      for (long ipn : found) ppns.add(XPN.ipnToPpn(ipn));
+      return ppns;
+   }
+
+   /**
+    * Helper for the binary search
+    * 
+    * @return The index of the first entry with the key, or of the first larger one.
+    */
+   private int firstIndex(long key) {
+      int low = 0;
+      int high = count;
+      if (key < 0) return count;
+      while (low < high) {
+         int middle = (low + high) >>> 1;
+         if (isbns.get(middle) < key) low = middle + 1;
+         else high = middle;
+      }
+      return low;
+   }
+
+   /**
+    * Collects the pairs of ISBN and PPN, and writes the index.<br>
+    * The ISBNs are stored in a compact form (without the prefix 978/979 and the check digit) in an int, so a pair costs 12 bytes on the heap while building. Only the
+    * ISBN-13 with prefix 978 or 979 (and all ISBN-10) are taken, other EANs are ignored.<br>
+    * By default only ISBNs with a correct check digit are taken from the records. The index stores the ISBN-13 with a recomputed check digit, so a typo in the digits of an
+    * invalid ISBN would become the key of another book, and a lookup would return records which don't carry it.
+    */
+   public static class Builder {
+      private final boolean withInvalid;
+      private int[]         compacts = new int[1 << 16];
+      private long[]        ipns     = new long[1 << 16];
+      private int           size     = 0;
+
+      /**
+       * Creates a builder which takes only the ISBNs with a correct check digit from the records.
+       */
+      public Builder() {
+         this(false);
+      }
+
+      /**
+       * Creates a builder
+       * 
+       * @param withInvalid TRUE to take the ISBNs with a wrong check digit from the records too, e.g. to find the records by the misprinted ISBN of a book. They are stored
+       *           with the recomputed check digit, and may match other books.
+       */
+      public Builder(boolean withInvalid) {
+         this.withInvalid = withInvalid;
+      }
+
+      /**
+       * Add a pair. Thread safe.
+       * 
+       * @param isbn The ISBN in the primitive form (see {@link ISBN#parse(CharSequence)}) or as plain ISBN-13
+       * @param ipn The IPN of the PPN (see {@link XPN#ppnToLong(CharSequence)})
+       * @return FALSE if the ISBN or the IPN is out of range, the pair is ignored then.
+       */
+      public synchronized boolean add(long isbn, long ipn) {
+         long compact = ISBN.toLong13(isbn) / 10 - PREFIX;
+         if ((isbn < 0) || (compact < 0) || (compact >= 2000000000L) || (ipn < 0) || (ipn > XPN.MAXIPN)) return false;
+         if (size == compacts.length) {
+            if (size == MAXCOUNT) throw new IllegalStateException("The index is full: " + size + " entries");
+            int newLength = (int) Math.min(MAXCOUNT, size * 2L);
+            compacts = Arrays.copyOf(compacts, newLength);
+            ipns = Arrays.copyOf(ipns, newLength);
+         }
+         compacts[size] = (int) compact;
+         ipns[size++] = ipn;
+         return true;
+      }
+
+      /**
+       * Add the ISBNs of a record (020 $a, $z and $9) with the PPN of the record (001). Thread safe.<br>
+       * ISBNs with a wrong check digit are skipped, unless the builder was created to take them.
+       * 
+       * @param record The record
+       * @return The number of pairs added, 0 if the record has no valid PPN.
+       */
+      public int add(Record record) {
+         long ipn = (record.getControlNumber() == null) ? XPN.NONE : XPN.ppnToLong(record.getControlNumber());
+         if (ipn == XPN.NONE) {
+            if (LOG.isDebugEnabled()) LOG.debug("Record without valid PPN is ignored: " + record.getControlNumber());
+            return 0;
+         }
+         int added = 0;
+         long[] found = new long[16];
+         for (VariableField field : record.getVariableFields("020")) {
+            for (Subfield subfield : ((DataField) field).getSubfields()) {
+               char code = subfield.getCode();
+               if ((code != 'a') && (code != 'z') && (code != '9')) continue;
+               int n = IsbnExtractor.extract(subfield.getData(), !withInvalid, found, null);
+               for (int i = 0; i < n; i++) {
+                  if (add(found[i], ipn)) added++;
+               }
+            }
+         }
+         return added;
+      }
+
+      /**
+       * @return The number of pairs added so far (with duplicates)
+       */
+      public synchronized int size() {
+         return size;
+      }
+
+      /**
+       * Sort the pairs, drop the duplicates and write the index. The file is replaced atomically, processes which have the old file mapped keep their view.
+       * 
+       * @param file The file for the index
+       * @throws IOException If the file can't be written
+       */
+      public synchronized void write(Path file) throws IOException {
+         // sort by ISBN: the compact ISBN in the high bits, the position of the pair in the low bits
+         long[] order = new long[size];
+         for (int i = 0; i < size; i++) order[i] = ((long) compacts[i] << 32) | i;
+         Arrays.parallelSort(order);
+         long[] sorted = new long[size];
+         for (int i = 0; i < size; i++) sorted[i] = ipns[(int) order[i]];
+         // sort the PPNs of each ISBN, and drop the duplicates (in place)
+         int count = 0;
+         for (int start = 0; start < size;) {
+            long compact = order[start] >>> 32;
+            int end = start + 1;
+            while ((end < size) && ((order[end] >>> 32) == compact)) end++;
+            Arrays.sort(sorted, start, end);
+            for (int i = start; i < end; i++) {
+               if ((count > 0) && (order[count - 1] == compact) && (sorted[count - 1] == sorted[i])) continue;
+               order[count] = compact;
+               sorted[count++] = sorted[i];
+            }
+            start = end;
+         }
+         Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+         try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+               out.writeLong(MAGIC);
+               out.writeLong(count);
+               for (int i = 0; i < count; i++) {
+                  long body = PREFIX + order[i];
+                  out.writeLong(body * 10 + ISBN.checkDigit13(body));
+               }
+               for (int i = 0; i < count; i++) out.writeLong(sorted[i]);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         } catch (IOException | RuntimeException e) {
+            try {
+               Files.deleteIfExists(temp); // don't leave a partial index behind
+            } catch (IOException f) {
+               e.addSuppressed(f);
+            }
+            throw e;
+         }
+         if (LOG.isDebugEnabled()) LOG.debug(file + ": " + count + " entries from " + size + " pairs written.");
+      }
+   }
+
+   /**
+    * Poor man's test and benchmark: Builds an index from a file with records, opens it and searches all ISBNs of the index, single threaded and parallel.
+    * 
+    * @param args The file with records (ISO 2709), the file for the index
+    * @throws IOException If a file can't be read or written
+    */
+   public static void main(String[] args) throws IOException {
+      Path index = Paths.get(args[1]);
+      long start = System.nanoTime();
+      try (Stream<Record> records = MarcWrapper.stream(Paths.get(args[0]), true)) {
+         build(records, index);
+      }
+      System.out.println(String.format("built in %d ms, %d bytes", (System.nanoTime() - start) / 1000000, Files.size(index)));
+      start = System.nanoTime();
+      IsbnPpnIndex ppns = open(index);
+      System.out.println(String.format("opened in %.1f ms, %d entries", (System.nanoTime() - start) / 1e6, ppns.size()));
+      if (ppns.size() == 0) return;
+      Random random = new Random(0);
+      long[] keys = new long[1000000];
+      for (int i = 0; i < keys.length; i++) keys[i] = ppns.isbns.get(random.nextInt(ppns.size()));
+      for (int round = 0; round < 5; round++) {
+         start = System.nanoTime();
+         long[] target = new long[16];
+         long found = 0;
+         for (long key : keys) found += ppns.lookup(key, target);
+         long single = System.nanoTime() - start;
+         start = System.nanoTime();
+         long parallel = IntStream.range(0, keys.length).parallel().mapToLong(i -> ppns.lookup(keys[i]).length).sum();
+         long parallelTime = System.nanoTime() - start;
+         System.out.println(String.format("%d lookups, %d PPNs found: single %d ms, parallel %d ms (%d PPNs)", keys.length, found, single / 1000000, parallelTime / 1000000,
+               parallel));
+      }
+      System.out.println(ppns.isbns.get(0) + " -> " + ppns.getPpns(String.valueOf(ppns.isbns.get(0))));
+   }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.ids;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Base of the primitive hash tables with PPNs as keys ({@link PpnSet}, {@link PpnLongMap}).<br>
+ * The keys are stored in the primitive form of {@link XPN} (the IPN), plus one to keep the 0 for empty slots. The slots are searched by linear probing, removed entries are
+ * filled by shifting the following entries back, so there are no tombstones. Each slot takes 'stride' longs: the key and the values.<br>
+ * The slots are stored in a {@link ByteBuffer} behind a small header. The buffer is either on the heap, direct (off heap) or a mapped file. The content of the buffer is the
+ * same as the content of the file, so saving is a plain write and a mapped table is ready without loading.<br>
+ * A table grows by doubling into a new buffer. The old direct buffer (and the direct copy of the old slots of a mapped table) is freed only by the garbage collector, so
+ * a growing table may hold up to three times its memory off heap for a while. Pass the expected number of entries to avoid this.<br>
+ * The tables are not thread safe.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-11 uh First try
+ */
+abstract class PpnHashTable implements Closeable {
+   static final Logger       LOG          = LogManager.getLogger(PpnHashTable.class);
+   /** "HdsPPN1\n" */
+   private static final long MAGIC        = 0x48647350504E310AL;
+   /** magic, stride, capacity, size */
+   private static final int  HEADERLENGTH = 32;
+   /** A single buffer holds up to 2^31 bytes, the slots get 1 GB at most. */
+   private static final long MAXBYTES     = 1L << 30;
+   private final int         stride;
+   private final boolean     direct;
+   private final FileChannel channel;
+   private final Path        file;
+   private ByteBuffer        buffer;
+   private LongBuffer        slots;
+   private int               capacity;
+   private int               bits;
+   private int               size;
+
+   /**
+    * Creates an empty table in memory
+    * 
+    * @param stride The number of longs per slot
+    * @param expected The expected number of entries
+    * @param direct TRUE to store the table off heap
+    */
+   PpnHashTable(int stride, int expected, boolean direct) {
+      this.stride = stride;
+      this.direct = direct;
+      channel = null;
+      file = null;
+      init(capacityFor(expected));
+   }
+
+   /**
+    * Opens a table in a mapped file, or creates it if the file is empty or missing.
+    * 
+    * @param stride The number of longs per slot
+    * @param file The file
+    * @param expected The expected number of entries, if a new table is created
+    * @throws IOException If the file can't be mapped or doesn't contain a table with the same stride
+    */
+   PpnHashTable(int stride, Path file, int expected) throws IOException {
+      this.stride = stride;
+      this.file = file;
+      direct = false;
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+         if (channel.size() == 0) {
+            init(capacityFor(expected));
+         } else {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, checkHeader(channel));
+            attach();
+            if (LOG.isDebugEnabled()) LOG.debug(file + ": " + size + " PPNs mapped.");
+         }
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Loads a saved table into memory
+    * 
+    * @param stride The number of longs per slot
+    * @param file The file written by {@link #save(Path)} or by a mapped table
+    * @param direct TRUE to store the table off heap
+    * @throws IOException If the file can't be read or doesn't contain a table with the same stride
+    */
+   PpnHashTable(int stride, Path file, boolean direct) throws IOException {
+      this.stride = stride;
+      this.direct = direct;
+      this.file = null;
+      channel = null;
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+         buffer = allocate(checkHeader(in));
+         while (buffer.hasRemaining()) {
+            if (in.read(buffer, buffer.position()) < 0) throw new IOException(file + " is truncated.");
+         }
+         buffer.clear();
+      }
+      attach();
+      if (LOG.isDebugEnabled()) LOG.debug(file + ": " + size + " PPNs loaded.");
+   }
+
+   /**
+    * @return The number of entries
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * @return TRUE if there are no entries
+    */
+   public boolean isEmpty() {
+      return size == 0;
+   }
+
+   /**
+    * @return The number of bytes used by the table (on heap, off heap or in the file)
+    */
+   public long memory() {
+      return buffer.capacity();
+   }
+
+   /**
+    * Writes the table to a file. The file can be loaded or mapped later.
+    * 
+    * @param target The file, an existing file is replaced.
+    * @throws IOException If the file can't be written
+    */
+   public void save(Path target) throws IOException {
+      writeHeader();
+      if (channel != null) {
+         ((MappedByteBuffer) buffer).force();
+         if (target.toAbsolutePath().equals(file.toAbsolutePath())) return;
+      }
+      try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+         ByteBuffer content = buffer.duplicate();
+         content.clear();
+         while (content.hasRemaining()) out.write(content);
+      }
+   }
+
+   /**
+    * Writes the header and the changed slots of a mapped table to the file. Without effect for tables in memory.
+    */
+   public void flush() {
+      if (channel == null) return;
+      writeHeader();
+      ((MappedByteBuffer) buffer).force();
+   }
+
+   @Override
+   public void close() throws IOException {
+      if (channel == null) return;
+      flush();
+      channel.close();
+   }
+
+   /**
+    * @param ipn The key
+    * @return TRUE if the IPN is within 0 to {@link XPN#MAXIPN}
+    */
+   static boolean isIpn(long ipn) {
+      return (ipn >= 0) && (ipn <= XPN.MAXIPN);
+   }
+
+   /**
+    * Helper to convert a PPN into a key
+    * 
+    * @return The IPN
+    * @throws IllegalArgumentException If the PPN isn't valid
+    */
+   static long toIpn(CharSequence ppn) {
+      long ipn = XPN.ppnToLong(ppn);
+      if (ipn == XPN.NONE) throw new IllegalArgumentException("No valid PPN: " + ppn);
+      return ipn;
+   }
+
+   /**
+    * Search for a key
+    * 
+    * @param ipn The key (0 to {@link XPN#MAXIPN})
+    * @return The slot with the key, or the empty slot where it belongs to.
+    */
+   final int find(long ipn) {
+      long stored = ipn + 1;
+      int mask = capacity - 1;
+      for (int slot = home(stored);; slot = (slot + 1) & mask) {
+         long current = slots.get(slot * stride);
+         if ((current == stored) || (current == 0)) return slot;
+      }
+   }
+
+   /**
+    * Search for a key, and add it if it is missing.
+    * 
+    * @param ipn The key
+    * @return The slot with the key, or (-slot - 1) if the key was added.
+    */
+   final int insert(long ipn) {
+      if (!isIpn(ipn)) throw new IllegalArgumentException("No valid IPN: " + ipn);
+      int slot = find(ipn);
+      if (isUsed(slot)) return slot;
+      if ((size + 1) > capacity / 4 * 3) {
+         grow();
+         slot = find(ipn);
+      }
+      slots.put(slot * stride, ipn + 1);
+      size++;
+      return -slot - 1;
+   }
+
+   /**
+    * @param slot The slot
+    * @return TRUE if the slot holds a key
+    */
+   final boolean isUsed(int slot) {
+      return slots.get(slot * stride) != 0;
+   }
+
+   /**
+    * @param slot A used slot
+    * @return The key (IPN)
+    */
+   final long key(int slot) {
+      return slots.get(slot * stride) - 1;
+   }
+
+   /**
+    * @param slot A used slot
+    * @param index The index of the value (1 to stride-1)
+    * @return The value
+    */
+   final long value(int slot, int index) {
+      return slots.get(slot * stride + index);
+   }
+
+   /**
+    * @param slot A used slot
+    * @param index The index of the value (1 to stride-1)
+    * @param value The new value
+    */
+   final void setValue(int slot, int index, long value) {
+      slots.put(slot * stride + index, value);
+   }
+
+   /**
+    * @return The number of slots
+    */
+   final int capacity() {
+      return capacity;
+   }
+
+   /**
+    * Remove the entry of a slot, the following entries of the cluster are moved back when the slot is on their way.
+    * 
+    * @param slot A used slot
+    */
+   final void removeSlot(int slot) {
+      int mask = capacity - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; isUsed(next); next = (next + 1) & mask) {
+         int home = home(slots.get(next * stride));
+         if (((next - home) & mask) >= ((next - hole) & mask)) {
+            for (int i = 0; i < stride; i++) slots.put(hole * stride + i, slots.get(next * stride + i));
+            hole = next;
+         }
+      }
+      for (int i = 0; i < stride; i++) slots.put(hole * stride + i, 0);
+      size--;
+   }
+
+   /**
+    * Remove all entries
+    */
+   public void clear() {
+      for (int i = 0; i < slots.capacity(); i++) slots.put(i, 0);
+      size = 0;
+   }
+
+   private int home(long stored) {
+      return (int) ((stored * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+   }
+
+   private int capacityFor(int expected) {
+      long needed = Math.max(16, (long) expected * 4 / 3 + 1);
+      int result = Integer.highestOneBit((int) Math.min(needed, Integer.MAX_VALUE / 2));
+      if (result < needed) result <<= 1;
+      return Math.min(result, maxCapacity());
+   }
+
+   private int maxCapacity() {
+      return (int) (MAXBYTES / 8 / stride);
+   }
+
+   /**
+    * Helper to get a new, empty buffer for the slots
+    */
+   private void init(int newCapacity) {
+      try {
+         buffer = allocate(HEADERLENGTH + (long) newCapacity * stride * 8);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      slots = slotsOf(buffer);
+      capacity = newCapacity;
+      bits = Integer.numberOfTrailingZeros(newCapacity);
+      size = 0;
+      writeHeader();
+   }
+
+   private ByteBuffer allocate(long length) throws IOException {
+      if (channel != null) return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+      return direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+   }
+
+   /**
+    * Helper to double the number of slots
+    */
+   private void grow() {
+      if (capacity >= maxCapacity()) throw new IllegalStateException("The table is full: " + size + " PPNs");
+      LongBuffer old = slots;
+      int oldCapacity = capacity;
+      if (channel != null) { // the file is remapped, keep a copy of the old slots (off heap, it may be large)
+         old = ByteBuffer.allocateDirect(old.capacity() * 8).asLongBuffer();
+         old.put(slots.duplicate()).clear();
+      }
+      if (LOG.isDebugEnabled()) LOG.debug("Grow from " + oldCapacity + " to " + (oldCapacity * 2) + " slots.");
+      init(oldCapacity * 2);
+      if (channel != null) clear(); // the old content is still in the file
+      for (int slot = 0; slot < oldCapacity; slot++) {
+         long stored = old.get(slot * stride);
+         if (stored == 0) continue;
+         int target = find(stored - 1);
+         for (int i = 0; i < stride; i++) slots.put(target * stride + i, old.get(slot * stride + i));
+         size++;
+      }
+   }
+
+   private LongBuffer slotsOf(ByteBuffer content) {
+      ByteBuffer view = content.duplicate();
+      view.position(HEADERLENGTH);
+      return view.slice().asLongBuffer();
+   }
+
+   /**
+    * Helper to validate the header of a file
+    * 
+    * @return The length of the table in the file
+    */
+   private long checkHeader(FileChannel in) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADERLENGTH);
+      while (header.hasRemaining()) {
+         if (in.read(header, header.position()) < 0) break;
+      }
+      header.flip();
+      if ((header.remaining() < HEADERLENGTH) || (header.getLong(0) != MAGIC)) throw new IOException("The file contains no PPN table.");
+      long fileStride = header.getLong(8);
+      long fileCapacity = header.getLong(16);
+      if (fileStride != stride) throw new IOException("The PPN table in the file has " + fileStride + " longs per slot, expected " + stride + ".");
+      long length = HEADERLENGTH + fileCapacity * stride * 8;
+      if ((Long.bitCount(fileCapacity) != 1) || (fileCapacity > maxCapacity()) || (in.size() < length)) throw new IOException("The PPN table in the file is damaged.");
+      return length;
+   }
+
+   /**
+    * Helper to read the header of the buffer
+    */
+   private void attach() {
+      slots = slotsOf(buffer);
+      capacity = (int) buffer.getLong(16);
+      bits = Integer.numberOfTrailingZeros(capacity);
+      size = (int) buffer.getLong(24);
+   }
+
+   private void writeHeader() {
+      buffer.putLong(0, MAGIC);
+      buffer.putLong(8, stride);
+      buffer.putLong(16, capacity);
+      buffer.putLong(24, size);
+   }
+}
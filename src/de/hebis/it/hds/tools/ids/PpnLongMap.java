@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.ids;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Map from PPNs to long values, e.g. the offset of the record in a file or a hash of its content.<br>
+ * Each entry takes two longs (16 bytes), in a table with a load up to 75%. The table is stored on the heap, off heap or in a mapped file (see {@link PpnHashTable}).
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-11 uh First try
+ */
+public class PpnLongMap extends PpnHashTable {
+   /** Result for missing PPNs */
+   public static final long NOVALUE = Long.MIN_VALUE;
+
+   /**
+    * Callback for the entries
+    */
+   @FunctionalInterface
+   public interface EntryConsumer {
+      /**
+       * @param ipn The IPN of the PPN
+       * @param value The value
+       */
+      void accept(long ipn, long value);
+   }
+
+   /**
+    * Creates an empty map on the heap
+    * 
+    * @param expected The expected number of PPNs
+    */
+   public PpnLongMap(int expected) {
+      super(2, expected, false);
+   }
+
+   /**
+    * Creates an empty map in memory
+    * 
+    * @param expected The expected number of PPNs
+    * @param direct TRUE to store the map off heap
+    */
+   public PpnLongMap(int expected, boolean direct) {
+      super(2, expected, direct);
+   }
+
+   private PpnLongMap(Path file, int expected) throws IOException {
+      super(2, file, expected);
+   }
+
+   private PpnLongMap(Path file, boolean direct) throws IOException {
+      super(2, file, direct);
+   }
+
+   /**
+    * Opens a map in a mapped file, or creates a new one if the file is empty or missing. The changes are written to the file by the OS. Call {@link #close()} or
+    * {@link #flush()} to store the size as well.
+    * 
+    * @param file The file
+    * @param expected The expected number of PPNs, if a new map is created
+    * @return The map
+    * @throws IOException If the file can't be mapped or doesn't contain a map
+    */
+   public static PpnLongMap mapped(Path file, int expected) throws IOException {
+      return new PpnLongMap(file, expected);
+   }
+
+   /**
+    * Loads a map into memory
+    * 
+    * @param file The file written by {@link #save(Path)} or by a mapped map
+    * @param direct TRUE to store the map off heap
+    * @return The map
+    * @throws IOException If the file can't be read or doesn't contain a map
+    */
+   public static PpnLongMap load(Path file, boolean direct) throws IOException {
+      return new PpnLongMap(file, direct);
+   }
+
+   /**
+    * @param ipn The IPN of the PPN, see {@link XPN#ppnToLong(CharSequence)}
+    * @param value The value
+    * @return The previous value, or {@link #NOVALUE} if the PPN was new.
+    * @throws IllegalArgumentException If the IPN is out of range
+    */
+   public long put(long ipn, long value) {
+      int slot = insert(ipn);
+      if (slot < 0) {
+         setValue(-slot - 1, 1, value);
+         return NOVALUE;
+      }
+      long previous = value(slot, 1);
+      setValue(slot, 1, value);
+      return previous;
+   }
+
+   /**
+    * @param ppn The PPN
+    * @param value The value
+    * @return The previous value, or {@link #NOVALUE} if the PPN was new.
+    * @throws IllegalArgumentException If the PPN isn't valid
+    */
+   public long put(CharSequence ppn, long value) {
+      return put(toIpn(ppn), value);
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @return The value, or {@link #NOVALUE} if the PPN is missing.
+    */
+   public long get(long ipn) {
+      return getOrDefault(ipn, NOVALUE);
+   }
+
+   /**
+    * @param ppn The PPN
+    * @return The value, or {@link #NOVALUE} if the PPN is missing or isn't valid.
+    */
+   public long get(CharSequence ppn) {
+      long ipn = XPN.ppnToLong(ppn);
+      return (ipn == XPN.NONE) ? NOVALUE : get(ipn);
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @param defaultValue The result for missing PPNs
+    * @return The value, or the default if the PPN is missing.
+    */
+   public long getOrDefault(long ipn, long defaultValue) {
+      if (!isIpn(ipn)) return defaultValue;
+      int slot = find(ipn);
+      return isUsed(slot) ? value(slot, 1) : defaultValue;
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @return TRUE if the PPN is in the map
+    */
+   public boolean containsKey(long ipn) {
+      return isIpn(ipn) && isUsed(find(ipn));
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @return The removed value, or {@link #NOVALUE} if the PPN wasn't in the map.
+    */
+   public long remove(long ipn) {
+      if (!isIpn(ipn)) return NOVALUE;
+      int slot = find(ipn);
+      if (!isUsed(slot)) return NOVALUE;
+      long previous = value(slot, 1);
+      removeSlot(slot);
+      return previous;
+   }
+
+   /**
+    * Pass all entries to an action, in no particular order. The keys must not be changed by the action.
+    * 
+    * @param action The action
+    */
+   public void forEach(EntryConsumer action) {
+      for (int slot = 0; slot < capacity(); slot++) {
+         if (isUsed(slot)) action.accept(key(slot), value(slot, 1));
+      }
+   }
+
+   /**
+    * Poor man's test and benchmark: Memory and time for a number of PPNs, compared with a {@link HashMap} of strings and boxed longs.
+    * 
+    * @param args optional the number of PPNs (default 5 millions)
+    * @throws IOException If the temporary file can't be written
+    */
+   public static void main(String[] args) throws IOException {
+      int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+      String[] ppns = new String[count];
+      for (int i = 0; i < count; i++) ppns[i] = XPN.ipnToPpn((i * 7919L) % XPN.MAXIPN);
+      Runtime runtime = Runtime.getRuntime();
+      for (int round = 0; round < 3; round++) {
+         System.gc();
+         long heap = runtime.totalMemory() - runtime.freeMemory();
+         long start = System.nanoTime();
+         Map<String, Long> strings = new HashMap<>();
+         for (int i = 0; i < count; i++) strings.put(XPN.checkPpn(ppns[i]), i * 1000L);
+         long added = System.nanoTime() - start;
+         long sum = 0;
+         for (String ppn : ppns) sum += strings.get(ppn.trim());
+         long searched = System.nanoTime() - start - added;
+         System.gc();
+         long used = runtime.totalMemory() - runtime.freeMemory() - heap;
+         System.out.println(String.format("HashMap<String, Long>: %d PPNs, %d MB heap, put %d ms, get %d ms (check %d)", strings.size(), used >> 20, added / 1000000,
+               searched / 1000000, sum));
+         strings = null;
+         System.gc();
+         heap = runtime.totalMemory() - runtime.freeMemory();
+         start = System.nanoTime();
+         PpnLongMap map = new PpnLongMap(16, true); // let it grow
+         for (int i = 0; i < count; i++) map.put(ppns[i], i * 1000L);
+         added = System.nanoTime() - start;
+         for (String ppn : ppns) sum -= map.get(ppn);
+         searched = System.nanoTime() - start - added;
+         System.gc();
+         used = runtime.totalMemory() - runtime.freeMemory() - heap;
+         System.out.println(String.format("PpnLongMap (direct): %d PPNs, %d MB heap, %d MB table, put %d ms, get %d ms (check %d)", map.size(), used >> 20, map.memory() >> 20,
+               added / 1000000, searched / 1000000, sum));
+      }
+      // mapped file, changed and opened again
+      Path file = Files.createTempFile("PpnLongMap", ".bin");
+      Files.delete(file);
+      int errors = 0;
+      try {
+         try (PpnLongMap mapped = mapped(file, count / 4)) { // let it grow in the file
+            for (int i = 0; i < count; i++) mapped.put((i * 7919L) % XPN.MAXIPN, i);
+            for (int i = 0; i < count; i += 2) if (mapped.remove((i * 7919L) % XPN.MAXIPN) != i) errors++;
+         }
+         long start = System.nanoTime();
+         try (PpnLongMap mapped = mapped(file, 0)) {
+            long opened = System.nanoTime() - start;
+            for (int i = 0; i < count; i++) if (mapped.get((i * 7919L) % XPN.MAXIPN) != (((i % 2) == 1) ? i : NOVALUE)) errors++;
+            System.out.println(String.format("mapped in %.1f ms, %d PPNs, %d errors", opened / 1e6, mapped.size(), errors));
+         }
+      } finally {
+         Files.delete(file);
+      }
+   }
+}
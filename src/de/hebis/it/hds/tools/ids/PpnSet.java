@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.ids;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of PPNs, e.g. to find duplicates or deleted records.<br>
+ * Each PPN takes one long (8 bytes), in a table with a load up to 75%. A {@link HashSet} of strings needs about 100 bytes per PPN. The table is stored on the heap, off heap or
+ * in a mapped file (see {@link PpnHashTable}).
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-11 uh First try
+ */
+public class PpnSet extends PpnHashTable {
+
+   /**
+    * Creates an empty set on the heap
+    * 
+    * @param expected The expected number of PPNs
+    */
+   public PpnSet(int expected) {
+      super(1, expected, false);
+   }
+
+   /**
+    * Creates an empty set in memory
+    * 
+    * @param expected The expected number of PPNs
+    * @param direct TRUE to store the set off heap
+    */
+   public PpnSet(int expected, boolean direct) {
+      super(1, expected, direct);
+   }
+
+   private PpnSet(Path file, int expected) throws IOException {
+      super(1, file, expected);
+   }
+
+   private PpnSet(Path file, boolean direct) throws IOException {
+      super(1, file, direct);
+   }
+
+   /**
+    * Opens a set in a mapped file, or creates a new one if the file is empty or missing. The changes are written to the file by the OS. Call {@link #close()} or
+    * {@link #flush()} to store the size as well.
+    * 
+    * @param file The file
+    * @param expected The expected number of PPNs, if a new set is created
+    * @return The set
+    * @throws IOException If the file can't be mapped or doesn't contain a set
+    */
+   public static PpnSet mapped(Path file, int expected) throws IOException {
+      return new PpnSet(file, expected);
+   }
+
+   /**
+    * Loads a set into memory
+    * 
+    * @param file The file written by {@link #save(Path)} or by a mapped set
+    * @param direct TRUE to store the set off heap
+    * @return The set
+    * @throws IOException If the file can't be read or doesn't contain a set
+    */
+   public static PpnSet load(Path file, boolean direct) throws IOException {
+      return new PpnSet(file, direct);
+   }
+
+   /**
+    * @param ipn The IPN of the PPN, see {@link XPN#ppnToLong(CharSequence)}
+    * @return TRUE if the PPN was added, FALSE if it was in the set already.
+    * @throws IllegalArgumentException If the IPN is out of range
+    */
+   public boolean add(long ipn) {
+      return insert(ipn) < 0;
+   }
+
+   /**
+    * @param ppn The PPN
+    * @return TRUE if the PPN was added, FALSE if it was in the set already.
+    * @throws IllegalArgumentException If the PPN isn't valid
+    */
+   public boolean add(CharSequence ppn) {
+      return add(toIpn(ppn));
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @return TRUE if the PPN is in the set
+    */
+   public boolean contains(long ipn) {
+      return isIpn(ipn) && isUsed(find(ipn));
+   }
+
+   /**
+    * @param ppn The PPN
+    * @return TRUE if the PPN is in the set, FALSE if not or if it isn't a valid PPN.
+    */
+   public boolean contains(CharSequence ppn) {
+      long ipn = XPN.ppnToLong(ppn);
+      return (ipn != XPN.NONE) && contains(ipn);
+   }
+
+   /**
+    * @param ipn The IPN of the PPN
+    * @return TRUE if the PPN was removed, FALSE if it wasn't in the set.
+    */
+   public boolean remove(long ipn) {
+      if (!isIpn(ipn)) return false;
+      int slot = find(ipn);
+      if (!isUsed(slot)) return false;
+      removeSlot(slot);
+      return true;
+   }
+
+   /**
+    * @param ppn The PPN
+    * @return TRUE if the PPN was removed, FALSE if it wasn't in the set or if it isn't a valid PPN.
+    */
+   public boolean remove(CharSequence ppn) {
+      long ipn = XPN.ppnToLong(ppn);
+      return (ipn != XPN.NONE) && remove(ipn);
+   }
+
+   /**
+    * Pass all PPNs (as IPN) to an action, in no particular order. The set must not be changed by the action.
+    * 
+    * @param action The action
+    */
+   public void forEach(LongConsumer action) {
+      for (int slot = 0; slot < capacity(); slot++) {
+         if (isUsed(slot)) action.accept(key(slot));
+      }
+   }
+
+   /**
+    * Poor man's test and benchmark: Memory and time for a number of PPNs, compared with a {@link HashSet} of strings.
+    * 
+    * @param args optional the number of PPNs (default 5 millions)
+    * @throws IOException If the temporary file can't be written
+    */
+   public static void main(String[] args) throws IOException {
+      int count = (args.length > 0) ? Integer.parseInt(args[0]) : 5000000;
+      String[] ppns = new String[count];
+      for (int i = 0; i < count; i++) ppns[i] = XPN.ipnToPpn((i * 7919L) % XPN.MAXIPN);
+      Runtime runtime = Runtime.getRuntime();
+      for (int round = 0; round < 3; round++) {
+         System.gc();
+         long heap = runtime.totalMemory() - runtime.freeMemory();
+         long start = System.nanoTime();
+         Set<String> strings = new HashSet<>();
+         for (String ppn : ppns) strings.add(XPN.checkPpn(ppn));
+         long added = System.nanoTime() - start;
+         int found = 0;
+         for (String ppn : ppns) if (strings.contains(ppn.trim())) found++;
+         long searched = System.nanoTime() - start - added;
+         System.gc();
+         long used = runtime.totalMemory() - runtime.freeMemory() - heap;
+         System.out.println(String.format("HashSet<String>: %d PPNs, %d found, %d MB heap, add %d ms, contains %d ms", strings.size(), found, used >> 20, added / 1000000,
+               searched / 1000000));
+         strings = null;
+         for (boolean direct : new boolean[] { false, true }) {
+            System.gc();
+            heap = runtime.totalMemory() - runtime.freeMemory();
+            start = System.nanoTime();
+            PpnSet set = new PpnSet(16, direct); // let it grow
+            for (String ppn : ppns) set.add(ppn);
+            added = System.nanoTime() - start;
+            found = 0;
+            for (String ppn : ppns) if (set.contains(ppn)) found++;
+            searched = System.nanoTime() - start - added;
+            System.gc();
+            used = runtime.totalMemory() - runtime.freeMemory() - heap;
+            System.out.println(String.format("PpnSet (%s): %d PPNs, %d found, %d MB heap, %d MB table, add %d ms, contains %d ms", direct ? "direct" : "heap", set.size(),
+                  found, used >> 20, set.memory() >> 20, added / 1000000, searched / 1000000));
+         }
+      }
+      // save, map and load again
+      Path file = Files.createTempFile("PpnSet", ".bin");
+      try {
+         PpnSet set = new PpnSet(count);
+         for (int i = 0; i < count; i++) set.add((i * 7919L) % XPN.MAXIPN);
+         set.save(file);
+         long start = System.nanoTime();
+         int errors = 0;
+         try (PpnSet mapped = mapped(file, 0)) {
+            long opened = System.nanoTime() - start;
+            for (int i = 0; i < count; i += 2) if (!mapped.remove((i * 7919L) % XPN.MAXIPN)) errors++;
+            for (int i = 0; i < count; i++) if (mapped.contains((i * 7919L) % XPN.MAXIPN) != ((i % 2) == 1)) errors++;
+            System.out.println(String.format("mapped in %.1f ms, %d PPNs left", opened / 1e6, mapped.size()));
+         }
+         start = System.nanoTime();
+         PpnSet loaded = load(file, false);
+         long read = System.nanoTime() - start;
+         long[] sum = new long[1];
+         loaded.forEach(ipn -> sum[0]++);
+         if ((sum[0] != count / 2) || (loaded.size() != count / 2)) errors++;
+         System.out.println(String.format("loaded in %d ms, %d PPNs, %d errors", read / 1000000, loaded.size(), errors));
+      } finally {
+         Files.delete(file);
+      }
+   }
+}
@@ -22,15 +22,21 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * Static tools to convert, test and compare the ids of the Pica library systems.<br>
- * - IPN = internal production number (one to eight digits)<br>
- * - PPN = pica production number (the IPN plus one character as check digit)<br>
- * TODO extend for new ids with 10(+1) digits
+ * - IPN = internal production number (one to ten digits)<br>
+ * - PPN = pica production number (the IPN, with leading zeros to at least eight digits, plus one character as check digit)<br>
+ * For mass data use the primitive form: The IPN as long, the methods for it work directly on {@link CharSequence} or byte[] without creating objects. The order of the
+ * IPNs is the numerical order of the PPNs.
  * 
  * @author 2014 Uwe
  * @version 2017-03-22 uh revised
+ * @version 2017-05-10 uh primitive form, ids with 10(+1) digits
  */
 public class XPN {
-   static final Logger LOG = LogManager.getLogger(XPN.class);
+   static final Logger LOG    = LogManager.getLogger(XPN.class);
+   /** Result for texts, which are no (valid) PPN */
+   public static final long NONE   = -1L;
+   /** The highest IPN (ten digits) */
+   public static final long MAXIPN = 9999999999L;
 
    /**
     * Private constructor to avoid non static access.
@@ -45,18 +51,98 @@ public class XPN {
     */
    public static String ppnToIpn(String ppn) {
       String out = ppn.trim(); // clean
-      out = out.substring(0, ppn.length() - 1); // strip check digit 
-      return out.replaceFirst("^0*", ""); // strip leading zeros
+      int end = out.length() - 1; // strip check digit
+      int start = 0;
+      while ((start < end) && (out.charAt(start) == '0')) start++; // strip leading zeros
+      return out.substring(start, end);
    }
 
    /**
     * Converts a PPN to a IPN
     * 
     * @param ppn The PPN to convert
-    * @return The IPN
+    * @return The IPN, use {@link #ppnToLong(CharSequence)} for ids with ten digits
     */
    public static int ppnToInt(String ppn) {
-      return Integer.valueOf(ppnToIpn(ppn));
+      return Integer.parseInt(ppnToIpn(ppn));
+   }
+
+   /**
+    * Converts a PPN to the primitive form, and validates it. The same PPNs are valid as for {@link #checkPpn(String)}: Only the canonical form is accepted, the IPN with
+    * leading zeros to at least eight digits and the check digit.
+    * 
+    * @param ppn The PPN, surrounding whitespace is ignored.
+    * @return The IPN, or {@link #NONE} if the text is no PPN, not in the canonical form, or the check digit is wrong.
+    */
+   public static long ppnToLong(CharSequence ppn) {
+      int from = 0;
+      int to = ppn.length();
+      while ((from < to) && (ppn.charAt(from) <= ' ')) from++;
+      while ((to > from) && (ppn.charAt(to - 1) <= ' ')) to--;
+      if ((to - from < 9) || (to - from > 11)) return NONE;
+      long ipn = 0;
+      for (int i = from; i < to - 1; i++) {
+         int digit = ppn.charAt(i) - '0';
+         if ((digit < 0) || (digit > 9)) return NONE;
+         ipn = ipn * 10 + digit;
+      }
+      return checked(ipn, ppn.charAt(to - 1), to - from);
+   }
+
+   /**
+    * Converts a PPN to the primitive form, and validates it.
+    * 
+    * @param data The buffer with the PPN (ASCII), surrounding whitespace is ignored.
+    * @param from The start of the PPN
+    * @param to The end of the PPN (exclusive)
+    * @return The IPN, or {@link #NONE} if the text is no PPN, not in the canonical form, or the check digit is wrong.
+    */
+   public static long ppnToLong(byte[] data, int from, int to) {
+      while ((from < to) && (data[from] >= 0) && (data[from] <= ' ')) from++;
+      while ((to > from) && (data[to - 1] >= 0) && (data[to - 1] <= ' ')) to--;
+      if ((to - from < 9) || (to - from > 11)) return NONE;
+      long ipn = 0;
+      for (int i = from; i < to - 1; i++) {
+         int digit = data[i] - '0';
+         if ((digit < 0) || (digit > 9)) return NONE;
+         ipn = ipn * 10 + digit;
+      }
+      return checked(ipn, (char) data[to - 1], to - from);
+   }
+
+   /**
+    * Validates a PPN (length and check digit).
+    * 
+    * @param ppn The PPN to validate
+    * @return TRUE if the PPN is formal correct
+    */
+   public static boolean isValidPpn(CharSequence ppn) {
+      return ppnToLong(ppn) != NONE;
+   }
+
+   /**
+    * Validates a PPN (length and check digit).
+    * 
+    * @param data The buffer with the PPN (ASCII)
+    * @param from The start of the PPN
+    * @param to The end of the PPN (exclusive)
+    * @return TRUE if the PPN is formal correct
+    */
+   public static boolean isValidPpn(byte[] data, int from, int to) {
+      return ppnToLong(data, from, to) != NONE;
+   }
+
+   /**
+    * Helper to compare the length and the check digit
+    * 
+    * @param length The length of the PPN
+    * @return The IPN, or {@link #NONE} if the PPN isn't in the canonical form or the check digit is wrong.
+    */
+   private static long checked(long ipn, char check, int length) {
+      int digits = 1;
+      for (long rest = ipn / 10; rest > 0; rest /= 10) digits++;
+      if (length != Math.max(8, digits) + 1) return NONE; // missing or too many leading zeros
+      return (computeCheckDigit(ipn) == Character.toUpperCase(check)) ? ipn : NONE;
    }
 
    /**
@@ -66,7 +152,35 @@ public class XPN {
     * @return The computed PPN
     */
    public static String ipnToPpn(int ipn) {
-      return ipnToPpn(String.valueOf(ipn));
+      return ipnToPpn((long) ipn);
+   }
+
+   /**
+    * Converts a IPN to a PPN
+    * 
+    * @param ipn The IPN to convert (up to ten digits)
+    * @return The computed PPN
+    */
+   public static String ipnToPpn(long ipn) {
+      if ((ipn < 0) || (ipn > MAXIPN)) {
+         LOG.error("Es werden bis jetzt nur 11-stellige PPNs unterstützt: " + ipn);
+         return "0";
+      }
+      return appendPpn(ipn, new StringBuilder(11)).toString();
+   }
+
+   /**
+    * Writes the PPN of a IPN
+    * 
+    * @param ipn The IPN to convert (0 to {@link #MAXIPN})
+    * @param out The target
+    * @return The target, with the PPN appended
+    */
+   public static StringBuilder appendPpn(long ipn, StringBuilder out) {
+      for (long limit = 10000000L; (limit > ipn) && (limit > 1); limit /= 10) {
+         out.append('0'); // führende Nullen ergänzen
+      }
+      return out.append(ipn).append(computeCheckDigit(ipn));
    }
 
    /**
@@ -78,12 +192,12 @@ public class XPN {
    public static String ipnToPpn(String ipn) {
       StringBuilder ppn = new StringBuilder();
       int len = ipn.length();
-      if (len > 8) {
-         LOG.error("Es werden bis jetzt nur 9-Stellige PPNs unterstützt: " + ipn);
+      if (len > 10) {
+         LOG.error("Es werden bis jetzt nur 11-stellige PPNs unterstützt: " + ipn);
          return "0";
       }
       char checkdigit = computeCheckDigit(ipn); // Prüfziffer ermitteln
-      ppn.append("00000000".substring(len, 8)); // führende Nullen ergänzen
+      if (len < 8) ppn.append("00000000".substring(len, 8)); // führende Nullen ergänzen
       ppn.append(ipn); // Die eigentliche Kennung 'IPN'
       ppn.append(checkdigit);
       return ppn.toString();
@@ -118,6 +232,23 @@ public class XPN {
       return (checksum == 10) ? 'X' : (char) ('0' + checksum);
    }
 
+   /**
+    * Calculate the check digit (mod-11)
+    * 
+    * @param ipn The number which needs a check digit
+    * @return The computed check digit [0..9X]
+    */
+   public static char computeCheckDigit(long ipn) {
+      long checksum = 0;
+      int weight = 2;
+      for (long rest = ipn; rest > 0; rest /= 10) {
+         checksum += (rest % 10) * weight++;
+      }
+      checksum = 11 - (checksum % 11);
+      if (checksum == 11) return '0';
+      return (checksum == 10) ? 'X' : (char) ('0' + checksum);
+   }
+
    /**
     * Simple Tests
     * 
@@ -139,6 +270,37 @@ public class XPN {
       System.out.println(ipnToPpn("21050208")); // 8
       System.out.println(ipnToPpn("13771932")); // 9
       System.out.println(ipnToPpn("21050207")); // X
+      System.out.println("####### 10(+1)");
+      System.out.println(ipnToPpn("1012345678") + " " + ipnToPpn(1012345678L) + " " + ppnToLong(ipnToPpn(1012345678L)));
+      System.out.println(ipnToPpn(MAXIPN) + " " + isValidPpn(ipnToPpn(MAXIPN)) + " " + isValidPpn("99999999990"));
+      System.out.println(ppnToLong(" 000000019 \n") + " " + ppnToLong("19") + " " + ppnToLong("0000000019") + " " + ppnToLong("21050207x") + " " + ppnToLong("21050207") + " " + ppnToLong("1".getBytes(), 0, 1));
+      int differences = 0;
+      for (long ipn = 1; ipn <= MAXIPN; ipn += 1 + ipn / 100000) {
+         String ppn = ipnToPpn(String.valueOf(ipn));
+         if (!ppn.equals(ipnToPpn(ipn)) || (ppnToLong(ppn) != ipn) || ((ipn <= Integer.MAX_VALUE) && (ppnToInt(ppn) != ipn)) || !ppn.equals(checkPpn(ppn))) differences++;
+         // both validations agree, also for the PPN without padding, with one more zero, and with a wrong check digit
+         String[] variants = { ppn, ppn.replaceFirst("^0+(?=.)", ""), "0" + ppn, ppn.substring(0, ppn.length() - 1) + ((ppn.endsWith("0")) ? "1" : "0"), " " + ppn.toLowerCase() };
+         for (String variant : variants) {
+            if (isValidPpn(variant) != (checkPpn(variant) != null)) differences++;
+         }
+      }
+      System.out.println(differences + " differences");
+      // Benchmark: validate and sort as strings or as primitives
+      String[] ppns = new String[1000000];
+      for (int i = 0; i < ppns.length; i++) ppns[i] = ipnToPpn((i * 7919L) % MAXIPN);
+      for (int round = 0; round < 5; round++) {
+         long start = System.nanoTime();
+         String[] strings = new String[ppns.length];
+         for (int i = 0; i < ppns.length; i++) strings[i] = checkPpn(ppns[i]);
+         java.util.Arrays.sort(strings);
+         long stringTime = System.nanoTime() - start;
+         start = System.nanoTime();
+         long[] ipns = new long[ppns.length];
+         for (int i = 0; i < ppns.length; i++) ipns[i] = ppnToLong(ppns[i]);
+         java.util.Arrays.sort(ipns);
+         long primitiveTime = System.nanoTime() - start;
+         System.out.println(String.format("%d PPNs validated and sorted: strings %d ms, primitive %d ms", ppns.length, stringTime / 1000000, primitiveTime / 1000000));
+      }
    }
 
 }
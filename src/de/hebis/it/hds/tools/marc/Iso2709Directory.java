@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leader and directory of a record in ISO 2709, read directly from the raw bytes.<br>
+ * Only strictly well formed records are accepted: The lengths and addresses are numeric and match the data, the fields are stored in the order of the directory without gaps,
+ * and each field ends with the (only) field terminator in it. Everything else is left to the permissive reader of marc4j.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-04 uh First try
+ */
+final class Iso2709Directory {
+   static final byte        RECORD_TERMINATOR  = 0x1D;
+   static final byte        FIELD_TERMINATOR   = 0x1E;
+   static final byte        SUBFIELD_DELIMITER = 0x1F;
+   static final int         LEADERLENGTH       = 24;
+   private static final int ENTRYLENGTH        = 12;
+   private final byte[]     data;
+   private final int        from;
+   /** Start of the data of each field, the last entry is the position of the record terminator */
+   private final int[]      starts;
+
+   private Iso2709Directory(byte[] data, int from, int[] starts) {
+      this.data = data;
+      this.from = from;
+      this.starts = starts;
+   }
+
+   /**
+    * Read the leader and the directory
+    * 
+    * @param data The buffer
+    * @param from The position of the record within the buffer
+    * @param to The position behind the record terminator
+    * @return The directory, or NULL if the record isn't strictly well formed.
+    */
+   static Iso2709Directory parse(byte[] data, int from, int to) {
+      int length = to - from;
+      if ((length <= LEADERLENGTH) || (data[to - 1] != RECORD_TERMINATOR)) return null;
+      for (int i = 0; i < LEADERLENGTH; i++) {
+         if ((data[from + i] < 0x20) || (data[from + i] > 0x7E)) return null;
+      }
+      if ((number(data, from, 5) != length) || (data[from + 10] != '2') || (data[from + 11] != '2')) return null;
+      int base = number(data, from + 12, 5);
+      if ((base <= LEADERLENGTH) || (base >= length) || ((base - LEADERLENGTH - 1) % ENTRYLENGTH != 0) || (data[from + base - 1] != FIELD_TERMINATOR)) return null;
+      int count = (base - LEADERLENGTH - 1) / ENTRYLENGTH;
+      int[] starts = new int[count + 1];
+      int expected = 0;
+      for (int i = 0; i < count; i++) {
+         int entry = from + LEADERLENGTH + i * ENTRYLENGTH;
+         for (int k = 0; k < 3; k++) {
+            if (!isAlphanumeric(data[entry + k])) return null;
+         }
+         int fieldLength = number(data, entry + 3, 4);
+         if ((fieldLength < 1) || (number(data, entry + 7, 5) != expected)) return null;
+         starts[i] = from + base + expected;
+         expected += fieldLength;
+      }
+      starts[count] = from + base + expected;
+      if (starts[count] != to - 1) return null;
+      for (int i = 0; i < count; i++) {
+         int end = starts[i + 1] - 1;
+         if (data[end] != FIELD_TERMINATOR) return null;
+         for (int pos = starts[i]; pos < end; pos++) {
+            if ((data[pos] == FIELD_TERMINATOR) || (data[pos] == RECORD_TERMINATOR)) return null;
+         }
+      }
+      return new Iso2709Directory(data, from, starts);
+   }
+
+   /**
+    * @return The number of fields
+    */
+   int size() {
+      return starts.length - 1;
+   }
+
+   /**
+    * @param pos The position within the leader (0-23)
+    * @return The character of the leader
+    */
+   char leaderChar(int pos) {
+      return (char) data[from + pos];
+   }
+
+   /**
+    * @return The leader as string
+    */
+   String leader() {
+      return new String(data, from, LEADERLENGTH, StandardCharsets.US_ASCII);
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @param pos The position within the tag (0-2)
+    * @return The character of the tag
+    */
+   char tagChar(int field, int pos) {
+      return (char) data[from + LEADERLENGTH + field * ENTRYLENGTH + pos];
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return The tag of the field
+    */
+   String tag(int field) {
+      return new String(new char[] { tagChar(field, 0), tagChar(field, 1), tagChar(field, 2) });
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return TRUE for the control fields '000' to '009', the same as marc4j
+    */
+   boolean isControlField(int field) {
+      return (tagChar(field, 0) == '0') && (tagChar(field, 1) == '0') && (tagChar(field, 2) >= '0') && (tagChar(field, 2) <= '9');
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return The position of the first byte of the field
+    */
+   int start(int field) {
+      return starts[field];
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return The position of the field terminator
+    */
+   int end(int field) {
+      return starts[field + 1] - 1;
+   }
+
+   /**
+    * @return The buffer with the record
+    */
+   byte[] data() {
+      return data;
+   }
+
+   /**
+    * @return The position of the record within the buffer
+    */
+   int from() {
+      return from;
+   }
+
+   /**
+    * @return The position behind the record terminator
+    */
+   int to() {
+      return starts[starts.length - 1] + 1;
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @param tag The tag to compare with
+    * @return TRUE if the field has this tag
+    */
+   boolean hasTag(int field, String tag) {
+      return (tag.length() == 3) && (tagChar(field, 0) == tag.charAt(0)) && (tagChar(field, 1) == tag.charAt(1)) && (tagChar(field, 2) == tag.charAt(2));
+   }
+
+   /**
+    * Helper to read a number with a fixed count of digits
+    * 
+    * @return The number or -1 if not all chars are digits
+    */
+   private static int number(byte[] data, int pos, int digits) {
+      int value = 0;
+      for (int i = pos; i < pos + digits; i++) {
+         int digit = data[i] - '0';
+         if ((digit < 0) || (digit > 9)) return -1;
+         value = value * 10 + digit;
+      }
+      return value;
+   }
+
+   private static boolean isAlphanumeric(byte c) {
+      return ((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'Z')) || ((c >= 'a') && (c <= 'z'));
+   }
+}
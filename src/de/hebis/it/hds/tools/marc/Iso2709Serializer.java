@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.marc4j.MarcStreamWriter;
+import org.marc4j.marc.Record;
+
+/**
+ * Reusable writer context to convert {@link Record}s to ISO 2709 (UTF-8, NFC).<br>
+ * The context (buffer and {@link MarcStreamWriter}, with the shared converter {@link MarcWrapper#NFC}) is created once per thread and reused for all records of the thread. The output is the same as of a new
+ * {@link MarcStreamWriter} per record.<br>
+ * An instance is confined to its thread, use {@link #get()} and don't pass it to other threads.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-28 uh First try
+ */
+public class Iso2709Serializer {
+   private static final ThreadLocal<Iso2709Serializer> CONTEXT   = ThreadLocal.withInitial(Iso2709Serializer::new);
+   /** Buffers grown above this size (very large records) are not kept */
+   private static final int                            KEEPLIMIT = 1 << 20;
+   private final Buffer                                buffer    = new Buffer();
+   private final MarcStreamWriter                      writer;
+
+   /**
+    * Byte buffer with access to its content, to avoid the copies of {@link ByteArrayOutputStream#toByteArray()}
+    */
+   private static class Buffer extends ByteArrayOutputStream {
+      Buffer() {
+         super(8192);
+      }
+
+      String decode() {
+         return new String(buf, 0, count, StandardCharsets.UTF_8);
+      }
+
+      void copyTo(ByteBuffer target) {
+         target.put(buf, 0, count);
+      }
+
+      void shrink() {
+         if (buf.length > KEEPLIMIT) buf = new byte[8192];
+      }
+   }
+
+   private Iso2709Serializer() {
+      writer = new MarcStreamWriter(buffer, "UTF-8", true);
+      writer.setConverter(MarcWrapper.NFC);
+   }
+
+   /**
+    * @return The serializer of the current thread
+    */
+   public static Iso2709Serializer get() {
+      return CONTEXT.get();
+   }
+
+   /**
+    * Converts a record to ISO 2709
+    * 
+    * @param marc The record to convert
+    * @return The record as new byte array
+    */
+   public byte[] toBytes(Record marc) {
+      serialize(marc);
+      byte[] bytes = buffer.toByteArray();
+      buffer.shrink();
+      return bytes;
+   }
+
+   /**
+    * Converts a record to ISO 2709
+    * 
+    * @param marc The record to convert
+    * @return The record as string
+    */
+   public String toString(Record marc) {
+      serialize(marc);
+      String ret = buffer.decode();
+      buffer.shrink();
+      return ret;
+   }
+
+   /**
+    * Writes a record as ISO 2709 to a stream. The stream is neither flushed nor closed.
+    * 
+    * @param marc The record to convert
+    * @param out The target
+    * @throws IOException if the stream can't be written
+    */
+   public void write(Record marc, OutputStream out) throws IOException {
+      serialize(marc);
+      buffer.writeTo(out);
+      buffer.shrink();
+   }
+
+   /**
+    * Writes a record as ISO 2709 into a buffer, starting at its position.
+    * 
+    * @param marc The record to convert
+    * @param target The target
+    * @return The number of bytes written
+    * @throws BufferOverflowException if the remaining space is to small. The buffer is unchanged in this case.
+    */
+   public int write(Record marc, ByteBuffer target) {
+      serialize(marc);
+      int size = buffer.size();
+      if (size > target.remaining()) throw new BufferOverflowException();
+      buffer.copyTo(target);
+      buffer.shrink();
+      return size;
+   }
+
+   /**
+    * Helper to write the record into the internal buffer
+    */
+   private void serialize(Record marc) {
+      buffer.reset();
+      writer.write(marc);
+   }
+}
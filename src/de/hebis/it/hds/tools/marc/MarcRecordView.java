@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.marc4j.MarcPermissiveStreamReader;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+import de.hebis.it.hds.tools.streams.ByteBlock;
+import de.hebis.it.hds.tools.streams.MappedBlockScanner;
+
+/**
+ * Lightweight, read only view of a record in ISO 2709.<br>
+ * Only the leader and the directory are read when the view is created. The fields and subfields are decoded (UTF-8) not before they are requested, straight from the bytes of
+ * the record. Use {@link #toRecord()} to get the full {@link Record} of marc4j.<br>
+ * The view refers to the bytes of the record, don't change them as long as the view is used.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-05 uh First try
+ */
+public class MarcRecordView {
+   private final Iso2709Directory directory;
+   private final byte[]           data;
+
+   private MarcRecordView(Iso2709Directory directory) {
+      this.directory = directory;
+      data = directory.data();
+   }
+
+   /**
+    * Creates a view of a record
+    * 
+    * @param raw The record as string, with the escapes of {@link MarcWrapper#string2Marc(String)}. (formated according ISO 2709)
+    * @return The view, or NULL if the record isn't well formed. (Use {@link MarcWrapper#string2Marc(String)} for those.)
+    */
+   public static MarcRecordView of(String raw) {
+      return of(UnicodeEscapes.toUtf8(raw));
+   }
+
+   /**
+    * Creates a view of a record
+    * 
+    * @param record The record (ISO 2709)
+    * @return The view, or NULL if the record isn't well formed.
+    */
+   public static MarcRecordView of(byte[] record) {
+      return of(record, 0, record.length);
+   }
+
+   /**
+    * Creates a view of a record
+    * 
+    * @param data The buffer with the record (ISO 2709)
+    * @param from The position of the record within the buffer
+    * @param to The position behind the record terminator
+    * @return The view, or NULL if the record isn't well formed.
+    */
+   public static MarcRecordView of(byte[] data, int from, int to) {
+      Iso2709Directory directory = Iso2709Directory.parse(data, from, to);
+      return (directory == null) ? null : new MarcRecordView(directory);
+   }
+
+   /**
+    * @return The leader
+    */
+   public String getLeader() {
+      return directory.leader();
+   }
+
+   /**
+    * @return The number of fields
+    */
+   public int size() {
+      return directory.size();
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return The tag of the field
+    */
+   public String getTag(int field) {
+      return directory.tag(field);
+   }
+
+   /**
+    * Search for a field
+    * 
+    * @param tag The tag to search for
+    * @param from The index to start the search
+    * @return The index of the next field with the tag, or -1 if there is none.
+    */
+   public int indexOf(String tag, int from) {
+      for (int i = from; i < directory.size(); i++) {
+         if (directory.hasTag(i, tag)) return i;
+      }
+      return -1;
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @return The whole content of the field, without the field terminator. (Including indicators and delimiters for data fields)
+    */
+   public String getData(int field) {
+      return decode(directory.start(field), directory.end(field));
+   }
+
+   /**
+    * @return The control number (001), or NULL if there is none.
+    */
+   public String getControlNumber() {
+      return getControlField("001");
+   }
+
+   /**
+    * @param tag The tag of the control field
+    * @return The content of the first control field with the tag, or NULL if there is none.
+    */
+   public String getControlField(String tag) {
+      int field = indexOf(tag, 0);
+      return (field < 0) ? null : getData(field);
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @param number The number of the indicator (1 or 2)
+    * @return The indicator, or ' ' if the field is to short.
+    * @throws IllegalArgumentException If the number isn't 1 or 2
+    */
+   public char getIndicator(int field, int number) {
+      if ((number != 1) && (number != 2)) throw new IllegalArgumentException("No indicator " + number + ", only 1 or 2.");
+      int pos = directory.start(field) + number - 1;
+      return (pos < directory.end(field)) ? (char) (data[pos] & 0xFF) : ' ';
+   }
+
+   /**
+    * @param field The index of the field in the directory
+    * @param code The code of the subfield
+    * @return The content of the first subfield with the code, or NULL if there is none.
+    */
+   public String getSubfield(int field, char code) {
+      int end = directory.end(field);
+      for (int pos = subfieldStart(field); pos >= 0; pos = nextSubfield(pos, end)) {
+         if ((pos + 1 < end) && (data[pos + 1] == code)) {
+            int next = nextSubfield(pos, end);
+            return decode(pos + 2, (next < 0) ? end : next);
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @param tag The tag of the data fields
+    * @param code The code of the subfield
+    * @return The content of the first subfield with the code, within the fields with the tag. NULL if there is none.
+    */
+   public String getSubfield(String tag, char code) {
+      for (int field = indexOf(tag, 0); field >= 0; field = indexOf(tag, field + 1)) {
+         String value = getSubfield(field, code);
+         if (value != null) return value;
+      }
+      return null;
+   }
+
+   /**
+    * @param tag The tag of the data fields
+    * @param code The code of the subfields
+    * @return The contents of all subfields with the code, within all fields with the tag.
+    */
+   public List<String> getSubfields(String tag, char code) {
+      List<String> values = new ArrayList<>();
+      for (int field = indexOf(tag, 0); field >= 0; field = indexOf(tag, field + 1)) {
+         int end = directory.end(field);
+         for (int pos = subfieldStart(field); pos >= 0; pos = nextSubfield(pos, end)) {
+            if ((pos + 1 < end) && (data[pos + 1] == code)) {
+               int next = nextSubfield(pos, end);
+               values.add(decode(pos + 2, (next < 0) ? end : next));
+            }
+         }
+      }
+      return values;
+   }
+
+   /**
+    * Parses the whole record, the same way as {@link MarcWrapper#string2Marc(String)}
+    * 
+    * @return The record
+    */
+   public Record toRecord() {
+      MarcPermissiveStreamReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(data, directory.from(), directory.to() - directory.from()), true, true);
+      return reader.hasNext() ? reader.next() : null;
+   }
+
+   /**
+    * @return The record as string (ISO 2709)
+    */
+   @Override
+   public String toString() {
+      return decode(directory.from(), directory.to());
+   }
+
+   /**
+    * Helper to find the first delimiter of a data field
+    * 
+    * @return The position of the delimiter, or -1 if there is none.
+    */
+   private int subfieldStart(int field) {
+      for (int pos = directory.start(field); pos < directory.end(field); pos++) {
+         if (data[pos] == Iso2709Directory.SUBFIELD_DELIMITER) return pos;
+      }
+      return -1;
+   }
+
+   /**
+    * Helper to find the next delimiter
+    * 
+    * @param pos The position of the current delimiter
+    * @param end The end of the field
+    * @return The position of the next delimiter, or -1 if there is none.
+    */
+   private int nextSubfield(int pos, int end) {
+      for (int i = pos + 1; i < end; i++) {
+         if (data[i] == Iso2709Directory.SUBFIELD_DELIMITER) return i;
+      }
+      return -1;
+   }
+
+   private String decode(int from, int to) {
+      return new String(data, from, to - from, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Poor man's test and benchmark: Reads the control number and the ISBNs of all records of a file (ISO 2709, UTF-8), by the view and by marc4j.
+    * 
+    * @param args The file
+    * @throws Exception If something went wrong
+    */
+   public static void main(String[] args) throws Exception {
+      Path file = Paths.get(args[0]);
+      List<byte[]> records = MappedBlockScanner.toByteBlocks(file, Iso2709Directory.RECORD_TERMINATOR, false).map(ByteBlock::toByteArray).collect(Collectors.toList());
+      int differences = 0;
+      for (byte[] record : records) {
+         MarcRecordView view = of(record);
+         Record marc = view.toRecord();
+         if (!view.getControlNumber().equals(marc.getControlNumber()) || !view.getSubfields("020", 'a').equals(isbnsOf(marc))) differences++;
+      }
+      System.out.println(records.size() + " records, " + differences + " differences");
+      for (int round = 0; round < 3; round++) {
+         long start = System.nanoTime();
+         long count = 0;
+         for (byte[] record : records) {
+            MarcRecordView view = of(record);
+            count += view.getControlNumber().length() + view.getSubfields("020", 'a').size();
+         }
+         long viewTime = System.nanoTime() - start;
+         start = System.nanoTime();
+         for (byte[] record : records) {
+            Record marc = MarcWrapper.string2Marc(new String(record, StandardCharsets.UTF_8));
+            count -= marc.getControlNumber().length() + isbnsOf(marc).size();
+         }
+         long marc4jTime = System.nanoTime() - start;
+         System.out.println(String.format("view %d ms, string2Marc %d ms (check %d)", viewTime / 1000000, marc4jTime / 1000000, count));
+      }
+   }
+
+   private static List<String> isbnsOf(Record marc) {
+      List<String> isbns = new ArrayList<>();
+      for (DataField field : marc.getDataFields()) {
+         if (!field.getTag().equals("020")) continue;
+         for (Subfield subfield : field.getSubfields('a')) {
+            isbns.add(subfield.getData());
+         }
+      }
+      return isbns;
+   }
+}
@@ -17,24 +17,37 @@
  */
 package de.hebis.it.hds.tools.marc;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.Normalizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.marc4j.MarcPermissiveStreamReader;
-import org.marc4j.MarcStreamWriter;
 import org.marc4j.MarcWriter;
-import org.marc4j.MarcXmlWriter;
 import org.marc4j.converter.CharConverter;
 import org.marc4j.marc.Record;
 import org.marc4j.marc.VariableField;
 
+import de.hebis.it.hds.tools.streams.ByteBlock;
+import de.hebis.it.hds.tools.streams.MappedBlockScanner;
+
 /**
  * Wrapper to Marc4J.<br>
  * The original Marc4J handles only with (java.io.*)character streams.<br>
@@ -45,19 +58,20 @@ import org.marc4j.marc.VariableField;
  * @version 2017-03-22 uh revised
  */
 public class MarcWrapper {
-   static final Logger  LOG     = LogManager.getLogger(MarcWrapper.class);
-   // RegEx-Pattern für die Methode normalizeUnicode(String) vordefinieren
-   static final Pattern pattern = Pattern.compile("(\\\\u(\\w{4}))|(#(29|30|31);)");
+   static final Logger         LOG               = LogManager.getLogger(MarcWrapper.class);
+   private static final byte   RECORD_TERMINATOR = 0x1D;
+   /** Shared converter to NFC, for all writers */
+   static final NormalizeToNFC NFC               = new NormalizeToNFC();
 
    /**
     * Prepare a converter for the use in a {@link MarcWriter}.<br/>
-    * The converter uses {@link Normalizer#normalize(CharSequence, java.text.Normalizer.Form)} to get {@link Normalizer.Form.NFC}
+    * The converter uses {@link NfcNormalizer} to get {@link Normalizer.Form.NFC}. It is stateless, use the shared instance {@link #NFC}.
     *
     */
-   private static class NormalizeToNFC extends CharConverter {
+   static class NormalizeToNFC extends CharConverter {
       @Override
       public String convert(char data[]) {
-         return Normalizer.normalize(new String(data), Normalizer.Form.NFC);
+         return NfcNormalizer.normalize(data);
       }
    }
 
@@ -65,20 +79,43 @@ public class MarcWrapper {
     * Converts a {@link Record} to ISO 2709
     * 
     * @param marc The record to convert
-    * @return The the record as string, or 'NULL' in case of an conversion error.
+    * @return The the record as string.
     */
    public static String marcToString(Record marc) {
-      try {
-         ByteArrayOutputStream b = new ByteArrayOutputStream();
-         MarcWriter marcwriter = new MarcStreamWriter(b, "UTF-8", true);
-         marcwriter.setConverter(new NormalizeToNFC());
-         marcwriter.write(marc);
-         marcwriter.close();
-         return b.toString("UTF-8");
-      } catch (UnsupportedEncodingException e) {
-         e.printStackTrace();
-      }
-      return null;
+      return Iso2709Serializer.get().toString(marc);
+   }
+
+   /**
+    * Converts a {@link Record} to ISO 2709
+    * 
+    * @param marc The record to convert
+    * @return The the record as UTF-8 bytes
+    */
+   public static byte[] marcToBytes(Record marc) {
+      return Iso2709Serializer.get().toBytes(marc);
+   }
+
+   /**
+    * Writes a {@link Record} as ISO 2709 to a stream. The stream is neither flushed nor closed.
+    * 
+    * @param marc The record to convert
+    * @param out The target
+    * @throws IOException if the stream can't be written
+    */
+   public static void marcToStream(Record marc, OutputStream out) throws IOException {
+      Iso2709Serializer.get().write(marc, out);
+   }
+
+   /**
+    * Writes a {@link Record} as ISO 2709 into a buffer, starting at its position.
+    * 
+    * @param marc The record to convert
+    * @param target The target
+    * @return The number of bytes written
+    * @throws BufferOverflowException if the remaining space is to small. The buffer is unchanged in this case.
+    */
+   public static int marcToBuffer(Record marc, ByteBuffer target) {
+      return Iso2709Serializer.get().write(marc, target);
    }
 
    /**
@@ -89,19 +126,7 @@ public class MarcWrapper {
     */
    public static String marc2XML(Record marc) {
       if (marc == null) return null;
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      MarcXmlWriter xmlWriter = new MarcXmlWriter(baos, true);
-      xmlWriter.write(marc);
-      xmlWriter.close();
-      String ret = "";
-      try {
-         ret = baos.toString("UTF-8");
-      } catch (UnsupportedEncodingException e) {
-         throw new RuntimeException("Should never Happens.", e);
-      }
-      int startPos = ret.indexOf("<record>") - 2;
-      int endPos = ret.indexOf("</collection>") - 1;
-      return ret.substring(startPos, endPos);
+      return MarcXmlStreamWriter.toFragment(marc);
    }
 
    /**
@@ -112,8 +137,7 @@ public class MarcWrapper {
     */
    public static Record string2Marc(String data) {
       try {
-         String normalizedData = normalizeUnicode(data);
-         InputStream dataStream = new ByteArrayInputStream(normalizedData.getBytes("UTF-8"));
+         InputStream dataStream = new ByteArrayInputStream(UnicodeEscapes.toUtf8(data));
          MarcPermissiveStreamReader mr = new MarcPermissiveStreamReader(dataStream, true, true);
          return mr.hasNext() ? mr.next() : null;
       } catch (Exception e) {
@@ -123,53 +147,83 @@ public class MarcWrapper {
    }
 
    /**
-    * Converts the record, given as string in (ISO 2709) to marcXML
+    * Reads all records from a stream (ISO 2709). The records are parsed while the stream is consumed, the escapes are replaced on the fly. (see {@link #string2Marc(String)})
     * 
-    * @param raw The record as string. (formated according ISO 2709)
-    * @return The record as string. (MarcXML)
+    * @param in The records (formated according ISO 2709)
+    * @return A lazy, sequential stream of the records. Closing it closes the input.
     */
-   public static String string2XML(String raw) {
-      return marc2XML(string2Marc(raw));
+   public static Stream<Record> stream(InputStream in) {
+      MarcPermissiveStreamReader reader = new MarcPermissiveStreamReader(UnicodeEscapes.filter(new BufferedInputStream(in, 1 << 16)), true, true);
+      Iterator<Record> records = new Iterator<Record>() {
+         @Override
+         public boolean hasNext() {
+            return reader.hasNext();
+         }
+
+         @Override
+         public Record next() {
+            return reader.next();
+         }
+      };
+      return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> {
+         try {
+            in.close();
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      });
    }
 
-   
    /**
-    * Weird filter for encoded characters and control characters.<br/>
-    * TODO 'get rid of'
+    * Reads all records from a channel (ISO 2709)
     * 
-    * @param string The raw string
-    * @return The filtered string
+    * @param channel The records (formated according ISO 2709)
+    * @return A lazy, sequential stream of the records. Closing it closes the channel.
+    * @see #stream(InputStream)
     */
-   private static String normalizeUnicode(String string) {
-      Matcher matcher = pattern.matcher(string);
-      StringBuffer result = new StringBuffer();
-      int prevEnd = 0;
-      while (matcher.find()) {
-         result.append(string.substring(prevEnd, matcher.start()));
-         result.append(getChar(matcher.group()));
-         prevEnd = matcher.end();
-      }
-      result.append(string.substring(prevEnd));
-      string = result.toString();
-      return string;
+   public static Stream<Record> stream(ReadableByteChannel channel) {
+      return stream(Channels.newInputStream(channel));
    }
 
    /**
-    * Helper to {@link #normalizeUnicode(String)}
+    * Reads all records from a file (ISO 2709)<br>
+    * For parallel streams the records are cut out by the record terminator (0x1D) with the {@link MappedBlockScanner} and parsed independently. Data between the records which
+    * isn't terminated is ignored in this case.
     * 
-    * @param charCodePoint A string with 'suspect' data
-    * @return a replacement for the input.
+    * @param file The records (formated according ISO 2709)
+    * @param parallel May the stream processed in parallel or not
+    * @return A lazy stream of the records in the order of the file. Closing it closes the file.
     */
-   private static String getChar(String charCodePoint) {
-      int charNum;
-      if (charCodePoint.startsWith("\\u")) {
-         charNum = Integer.parseInt(charCodePoint.substring(2), 16);
-         // Das konvertierte Zeichen mit Platzhalter ausgeben, weil sich sonst die Feldlänge im Marc ändert.
-         return "" + (char) charNum + "    ";
+   public static Stream<Record> stream(Path file, boolean parallel) {
+      if (parallel) return MappedBlockScanner.toByteBlocks(file, RECORD_TERMINATOR, true).map(MarcWrapper::block2Marc).filter(Objects::nonNull);
+      try {
+         return stream(Files.newInputStream(file));
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
       }
-      // Steuerzeichen
-      charNum = Integer.parseInt(charCodePoint.substring(1, 3));
-      return "" + (char) charNum;
+   }
+
+   /**
+    * Helper to parse a single record, cut out of a file.
+    * 
+    * @param block The record (formated according ISO 2709)
+    * @return The record or NULL if no record could be found.
+    */
+   private static Record block2Marc(ByteBlock block) {
+      InputStream dataStream = UnicodeEscapes.filter(new ByteArrayInputStream(block.toByteArray()));
+      MarcPermissiveStreamReader mr = new MarcPermissiveStreamReader(dataStream, true, true);
+      return mr.hasNext() ? mr.next() : null;
+   }
+
+   /**
+    * Converts the record, given as string in (ISO 2709) to marcXML<br>
+    * The record is converted directly by the {@link MarcXmlTranscoder}, without building a {@link Record}.
+    * 
+    * @param raw The record as string. (formated according ISO 2709)
+    * @return The record as string. (MarcXML)
+    */
+   public static String string2XML(String raw) {
+      return MarcXmlTranscoder.toXml(UnicodeEscapes.toUtf8(raw));
    }
 
    /**
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.marc4j.MarcException;
+import org.marc4j.MarcWriter;
+import org.marc4j.MarcXmlWriter;
+import org.marc4j.converter.CharConverter;
+import org.marc4j.marc.Record;
+
+/**
+ * Streaming MarcXML writer, writing many records into one stream.<br>
+ * <dl>
+ * <dt>collection mode</dt>
+ * <dd>The output is one document: &lt;collection&gt; with all records.</dd>
+ * <dt>fragment mode</dt>
+ * <dd>The output is a sequence of bare &lt;record&gt; elements, each starting in a new line. The XML declaration and the collection element are dropped while they are written,
+ * so no document is built and cut afterwards. The namespace declaration is part of the dropped collection element.</dd>
+ * </dl>
+ * The records are serialized by a single {@link MarcXmlWriter}, so the format is the same as of marc4j.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-02 uh First try
+ */
+public class MarcXmlStreamWriter implements MarcWriter {
+   private static final ThreadLocal<MarcXmlStreamWriter> FRAGMENTWRITER = ThreadLocal.withInitial(() -> new MarcXmlStreamWriter(new StringBuilderWriter(), true, true));
+   private final Writer                                  out;
+   private final FragmentFilter                          filter;
+   private final MarcXmlWriter                           xmlWriter;
+
+   /**
+    * Instance a new writer (UTF-8)
+    * 
+    * @param out The target stream
+    * @param indent Indent the XML
+    * @param fragment TRUE for the fragment mode, FALSE for the collection mode.
+    */
+   public MarcXmlStreamWriter(OutputStream out, boolean indent, boolean fragment) {
+      this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), indent, fragment);
+   }
+
+   /**
+    * Instance a new writer
+    * 
+    * @param out The target writer
+    * @param indent Indent the XML
+    * @param fragment TRUE for the fragment mode, FALSE for the collection mode.
+    */
+   public MarcXmlStreamWriter(Writer out, boolean indent, boolean fragment) {
+      this.out = out;
+      filter = fragment ? new FragmentFilter(out) : null;
+      xmlWriter = new MarcXmlWriter(new StreamResult(fragment ? filter : out));
+      xmlWriter.setIndent(indent);
+   }
+
+   /**
+    * Converts a {@link Record} to a MarcXML fragment, by a writer reused for the current thread.
+    * 
+    * @param marc The record to convert
+    * @return The record element (without XML declaration and collection)
+    */
+   static String toFragment(Record marc) {
+      MarcXmlStreamWriter writer = FRAGMENTWRITER.get();
+      StringBuilder buffer = ((StringBuilderWriter) writer.out).getBuilder();
+      buffer.setLength(0);
+      writer.write(marc);
+      int start = ((buffer.length() > 0) && (buffer.charAt(0) == '\n')) ? 1 : 0;
+      String ret = buffer.substring(start);
+      if (buffer.capacity() > (1 << 20)) buffer.trimToSize();
+      return ret;
+   }
+
+   @Override
+   public void write(Record record) {
+      xmlWriter.write(record);
+   }
+
+   /**
+    * Flush the records written so far to the target.
+    */
+   public void flush() {
+      try {
+         out.flush();
+      } catch (IOException e) {
+         throw new MarcException(e.getMessage(), e);
+      }
+   }
+
+   @Override
+   public void setConverter(CharConverter converter) {
+      xmlWriter.setConverter(converter);
+   }
+
+   @Override
+   public CharConverter getConverter() {
+      return xmlWriter.getConverter();
+   }
+
+   /**
+    * Set the unicode normalization (NFC) of the {@link MarcXmlWriter}
+    * 
+    * @param normalize TRUE to normalize
+    */
+   public void setUnicodeNormalization(boolean normalize) {
+      xmlWriter.setUnicodeNormalization(normalize);
+   }
+
+   /**
+    * Finish the output (the end of the collection in collection mode) and close the target.
+    */
+   @Override
+   public void close() {
+      if (filter != null) filter.drop = true; // the end of the collection
+      xmlWriter.close();
+      try {
+         out.write('\n');
+         out.close();
+      } catch (IOException e) {
+         throw new MarcException(e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Drops everything up to the end of the first start tag (the collection) and everything after {@link #drop} is set.
+    */
+   private static class FragmentFilter extends FilterWriter {
+      boolean drop   = false;
+      boolean inHead = true;
+      int     last   = 0;
+
+      FragmentFilter(Writer out) {
+         super(out);
+      }
+
+      @Override
+      public void write(int c) throws IOException {
+         if (drop) return;
+         if (inHead) {
+            // a start tag ends with '>', but not the declaration "<?...?>" or a comment "<!...>"
+            if ((c == '<') || ((last == '<') && ((c == '?') || (c == '!')))) last = c;
+            else if ((c == '>') && (last == '<')) inHead = false;
+            return;
+         }
+         out.write(c);
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException {
+         if (drop) return;
+         int i = off;
+         while (inHead && (i < off + len)) write(cbuf[i++]);
+         if (i < off + len) out.write(cbuf, i, off + len - i);
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException {
+         if (drop) return;
+         int i = off;
+         while (inHead && (i < off + len)) write(str.charAt(i++));
+         if (i < off + len) out.write(str, i, off + len - i);
+      }
+   }
+}
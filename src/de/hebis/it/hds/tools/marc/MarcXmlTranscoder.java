@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.marc4j.MarcPermissiveStreamReader;
+
+import de.hebis.it.hds.tools.streams.ByteBlock;
+import de.hebis.it.hds.tools.streams.MappedBlockScanner;
+
+/**
+ * Converts records from ISO 2709 (UTF-8) to MarcXML without building a {@link org.marc4j.marc.Record}.<br>
+ * The leader and the directory are read from the raw bytes ({@link Iso2709Directory}), and the XML is written directly from the bytes of the fields. The output is the same as of
+ * {@link MarcWrapper#marc2XML(org.marc4j.marc.Record)} for a record read by marc4j: The same fragment and indentation, the control field '001' first, empty subfields dropped,
+ * the same escaping. (The characters are not normalized, neither by the reader nor by the writer of marc4j.)<br>
+ * Records which aren't simple enough are converted the long way by marc4j: Other encodings than UTF-8, records which aren't strictly well formed, and data which marc4j writes as
+ * character reference (control characters and characters beyond the BMP).
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-04 uh First try
+ */
+public final class MarcXmlTranscoder {
+   private static final Logger LOG = LogManager.getLogger(MarcXmlTranscoder.class);
+
+   private MarcXmlTranscoder() {
+   }
+
+   /**
+    * Converts a record to MarcXML
+    * 
+    * @param record The record (ISO 2709)
+    * @return The record element (without XML declaration and collection), or NULL if no record could be found.
+    */
+   public static String toXml(byte[] record) {
+      return toXml(record, 0, record.length);
+   }
+
+   /**
+    * Converts a record to MarcXML
+    * 
+    * @param data The buffer with the record (ISO 2709)
+    * @param from The position of the record within the buffer
+    * @param to The position behind the record terminator
+    * @return The record element (without XML declaration and collection), or NULL if no record could be found.
+    */
+   public static String toXml(byte[] data, int from, int to) {
+      String xml = transcode(data, from, to);
+      if (xml != null) return xml;
+      if (LOG.isTraceEnabled()) LOG.trace("Record at " + from + " is converted by marc4j.");
+      return viaRecord(data, from, to);
+   }
+
+   /**
+    * Converts a record the long way by marc4j
+    * 
+    * @return The record element, or NULL if no record could be found.
+    */
+   private static String viaRecord(byte[] data, int from, int to) {
+      MarcPermissiveStreamReader reader = new MarcPermissiveStreamReader(new ByteArrayInputStream(data, from, to - from), true, true);
+      return reader.hasNext() ? MarcWrapper.marc2XML(reader.next()) : null;
+   }
+
+   /**
+    * Converts a record directly
+    * 
+    * @return The record element, or NULL if the record has to be converted by marc4j.
+    */
+   static String transcode(byte[] data, int from, int to) {
+      Iso2709Directory directory = Iso2709Directory.parse(data, from, to);
+      if ((directory == null) || (directory.size() == 0) || (directory.leaderChar(9) != 'a')) return null;
+      // marc4j writes the entry map always as "4500"
+      if ((directory.leaderChar(20) != '4') || (directory.leaderChar(21) != '5') || (directory.leaderChar(22) != '0') || (directory.leaderChar(23) != '0')) return null;
+      StringBuilder out = new StringBuilder((to - from) * 2 + 64);
+      out.append("  <marc:record>\n    <marc:leader>");
+      appendText(data, from, from + Iso2709Directory.LEADERLENGTH, out);
+      out.append("</marc:leader>\n");
+      // marc4j puts the control number in front of the other control fields
+      int controlNumber = -1;
+      for (int i = 0; i < directory.size(); i++) {
+         if (!directory.isControlField(i)) continue;
+         if (directory.tagChar(i, 2) == '0') return null; // dropped by marc4j
+         if (directory.tagChar(i, 2) == '1') {
+            if (controlNumber >= 0) return null;
+            controlNumber = i;
+         }
+      }
+      if ((controlNumber >= 0) && !appendControlField(directory, controlNumber, out)) return null;
+      for (int i = 0; i < directory.size(); i++) {
+         if (directory.isControlField(i) && (i != controlNumber) && !appendControlField(directory, i, out)) return null;
+      }
+      for (int i = 0; i < directory.size(); i++) {
+         if (!directory.isControlField(i) && !appendDataField(directory, i, out)) return null;
+      }
+      out.append("  </marc:record>");
+      return out.toString();
+   }
+
+   private static boolean appendControlField(Iso2709Directory directory, int field, StringBuilder out) {
+      out.append("    <marc:controlfield tag=\"").append(directory.tag(field));
+      if (directory.start(field) == directory.end(field)) {
+         out.append("\"/>\n");
+         return true;
+      }
+      out.append("\">");
+      if (!appendText(directory.data(), directory.start(field), directory.end(field), out)) return false;
+      out.append("</marc:controlfield>\n");
+      return true;
+   }
+
+   private static boolean appendDataField(Iso2709Directory directory, int field, StringBuilder out) {
+      byte[] data = directory.data();
+      int start = directory.start(field);
+      int end = directory.end(field);
+      if ((end - start < 2) || ((end - start > 2) && (data[start + 2] != Iso2709Directory.SUBFIELD_DELIMITER))) return false;
+      out.append("    <marc:datafield tag=\"").append(directory.tag(field)).append("\" ind1=\"");
+      if (!appendAttribute(data[start], out)) return false;
+      out.append("\" ind2=\"");
+      if (!appendAttribute(data[start + 1], out)) return false;
+      out.append("\">\n");
+      int pos = start + 2;
+      while (pos + 1 < end) { // 'pos' is at a delimiter, followed by the code
+         byte code = data[pos + 1];
+         // upper case codes are lowered by marc4j, and any invalid byte makes marc4j guess another encoding for the whole record
+         if ((code < 0x20) || (code > 0x7E) || ((code >= 'A') && (code <= 'Z'))) return false;
+         int next = pos + 2;
+         while ((next < end) && (data[next] != Iso2709Directory.SUBFIELD_DELIMITER)) next++;
+         if (next > pos + 2) { // marc4j drops empty subfields
+            out.append("      <marc:subfield code=\"");
+            if (!appendAttribute(code, out)) return false;
+            out.append("\">");
+            if (!appendText(data, pos + 2, next, out)) return false;
+            out.append("</marc:subfield>\n");
+         }
+         pos = next;
+      }
+      out.append("    </marc:datafield>\n");
+      return true;
+   }
+
+   /**
+    * Helper to write an indicator or a subfield code
+    * 
+    * @return FALSE if the character isn't printable ASCII
+    */
+   private static boolean appendAttribute(byte c, StringBuilder out) {
+      switch (c) {
+         case '&':
+            out.append("&amp;");
+            return true;
+         case '<':
+            out.append("&lt;");
+            return true;
+         case '>':
+            out.append("&gt;");
+            return true;
+         case '"':
+            out.append("&quot;");
+            return true;
+         default:
+            if ((c < 0x20) || (c > 0x7E)) return false;
+            out.append((char) c);
+            return true;
+      }
+   }
+
+   /**
+    * Helper to decode UTF-8 and to write it as escaped text
+    * 
+    * @return FALSE if the bytes aren't valid UTF-8, or if marc4j would write a character reference.
+    */
+   private static boolean appendText(byte[] data, int from, int to, StringBuilder out) {
+      int pos = from;
+      while (pos < to) {
+         int b = data[pos++];
+         if (b >= 0x20) {
+            if (b == '&') out.append("&amp;");
+            else if (b == '<') out.append("&lt;");
+            else if (b == '>') out.append("&gt;");
+            else if (b == 0x7F) return false;
+            else out.append((char) b);
+         } else if (b >= 0) {
+            if ((b != '\t') && (b != '\n')) return false;
+            out.append((char) b);
+         } else if ((b & 0xE0) == 0xC0) {
+            if ((pos >= to) || !isContinuation(data[pos])) return false;
+            int c = ((b & 0x1F) << 6) | (data[pos++] & 0x3F);
+            if (c < 0xA0) return false; // overlong or C1 control
+            out.append((char) c);
+         } else if ((b & 0xF0) == 0xE0) {
+            if ((pos + 1 >= to) || !isContinuation(data[pos]) || !isContinuation(data[pos + 1])) return false;
+            int c = ((b & 0x0F) << 12) | ((data[pos] & 0x3F) << 6) | (data[pos + 1] & 0x3F);
+            pos += 2;
+            // marc4j takes a replacement character as sign for another encoding
+            if ((c < 0x800) || Character.isSurrogate((char) c) || (c >= 0xFFFD)) return false;
+            out.append((char) c);
+         } else {
+            return false; // beyond the BMP or invalid
+         }
+      }
+      return true;
+   }
+
+   private static boolean isContinuation(byte b) {
+      return (b & 0xC0) == 0x80;
+   }
+
+   /**
+    * Poor man's test and benchmark: Converts all records of a file (ISO 2709, UTF-8) both ways and compares the results.
+    * 
+    * @param args The file
+    * @throws Exception If something went wrong
+    */
+   public static void main(String[] args) throws Exception {
+      Path file = Paths.get(args[0]);
+      List<byte[]> records = MappedBlockScanner.toByteBlocks(file, Iso2709Directory.RECORD_TERMINATOR, false).map(ByteBlock::toByteArray).collect(Collectors.toList());
+      for (int round = 0; round < 3; round++) {
+         long start = System.nanoTime();
+         long chars = 0;
+         for (byte[] record : records) {
+            chars += viaRecord(record, 0, record.length).length();
+         }
+         long marc4j = System.nanoTime() - start;
+         start = System.nanoTime();
+         int direct = 0;
+         for (byte[] record : records) {
+            String xml = transcode(record, 0, record.length);
+            if (xml != null) direct++;
+            else xml = viaRecord(record, 0, record.length);
+            chars -= xml.length();
+         }
+         long transcoder = System.nanoTime() - start;
+         System.out.println(String.format("%d records (%d direct): marc4j %d ms, transcoder %d ms, difference in length %d", records.size(), direct, marc4j / 1000000,
+               transcoder / 1000000, chars));
+      }
+      int differences = 0;
+      for (byte[] record : records) {
+         String expected = viaRecord(record, 0, record.length);
+         String actual = toXml(record);
+         if ((expected == null) ? (actual != null) : !expected.equals(actual)) {
+            if (differences++ < 10) System.out.println("Difference:\n" + expected + "\n" + actual);
+         }
+      }
+      System.out.println(differences + " differences");
+   }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.marc4j.marc.ControlField;
+import org.marc4j.marc.DataField;
+import org.marc4j.marc.Record;
+import org.marc4j.marc.Subfield;
+
+/**
+ * Unicode normalization (NFC) with a fast path for the usual data.<br>
+ * The characters below U+0300 (ASCII, Latin-1, Latin Extended) are normalized already, and none of them combines with the character before. Text with only these characters
+ * is returned without further checks, the rest is checked and, if needed, normalized by the {@link Normalizer}.<br>
+ * The result is the same as of {@link Normalizer#normalize(CharSequence, java.text.Normalizer.Form)}.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-08 uh First try
+ */
+final class NfcNormalizer {
+   /** The first combining diacritical mark, all characters below are uncritical. */
+   private static final char FIRST_CRITICAL = 0x300;
+
+   private NfcNormalizer() {
+   }
+
+   /**
+    * Normalize to NFC
+    * 
+    * @param data The text
+    * @return The normalized text
+    */
+   static String normalize(char[] data) {
+      if (!hasCritical(data)) return new String(data); // the usual case
+      return normalizeCritical(new String(data));
+   }
+
+   /**
+    * Normalize to NFC
+    * 
+    * @param text The text
+    * @return The normalized text, the same instance if nothing had to be changed.
+    */
+   static String normalize(String text) {
+      int length = text.length();
+      for (int i = 0; i < length; i++) {
+         if (text.charAt(i) >= FIRST_CRITICAL) return normalizeCritical(text);
+      }
+      return text;
+   }
+
+   /**
+    * Helper for text with critical characters
+    * 
+    * @param text The text
+    * @return The normalized text, the same instance if nothing had to be changed.
+    */
+   private static String normalizeCritical(String text) {
+      return Normalizer.isNormalized(text, Normalizer.Form.NFC) ? text : Normalizer.normalize(text, Normalizer.Form.NFC);
+   }
+
+   private static boolean hasCritical(char[] data) {
+      for (char c : data) {
+         if (c >= FIRST_CRITICAL) return true;
+      }
+      return false;
+   }
+
+   /**
+    * Poor man's test and benchmark: Normalizes mixed script texts with {@link Normalizer} and with the fast path, and compares the results.
+    * 
+    * @param args optional a file with records (ISO 2709), to use the data of their fields instead of the built in samples.
+    * @throws IOException If the file can't be read
+    */
+   public static void main(String[] args) throws IOException {
+      List<char[]> data = new ArrayList<>();
+      if (args.length > 0) {
+         try (Stream<Record> records = MarcWrapper.stream(Paths.get(args[0]), false)) {
+            records.forEach(record -> {
+               for (ControlField field : record.getControlFields()) data.add(field.getData().toCharArray());
+               for (DataField field : record.getDataFields()) {
+                  for (Subfield subfield : field.getSubfields()) data.add(subfield.getData().toCharArray());
+               }
+            });
+         }
+      } else {
+         String[] samples = { "Geschichte der Stadt Frankfurt am Main", "Zeitschrift für Bibliothekswesen und Bibliographie", "Œuvres complètes de Molière",
+               "Märchen und Sagen aus Österreich", "Łódź : Wydawnictwo Uniwersytetu Łódzkiego", "Ἱστορίαι : Ἡροδότου", "Война и мир", "Việt Nam", "東京大学出版会",
+               "كتاب الأغاني", "ספר הזהר", "서울대학교", "Dvořák, Antonín", "Čapek, Karel", "978-3-16-148410-0", "Mu\u0308ller, Jo\u0308rg" };
+         for (int i = 0; i < 200000; i++) data.add(samples[i % samples.length].toCharArray());
+      }
+      int differences = 0;
+      for (char[] chars : data) {
+         if (!normalize(chars).equals(Normalizer.normalize(new String(chars), Normalizer.Form.NFC))) differences++;
+      }
+      Random random = new Random(0);
+      String[] pieces = { "a", "e", "A", " ", "ä", "\u0308", "\u0301", "\u0327", "\u0323", "\u0304", "\u0344", "\u0387", "\u03b1", "\u1f71", "\u0399", "\u0438", "\u0306",
+            "\u0627", "\u0653", "\u05d0", "\u05b8", "\u304b", "\u3099", "\u1100", "\u1161", "\u11a8", "\uac00", "\u212b", "\uf900", "\u4e00", "\ud834\udd5e",
+            "\ud800", "\u0ccf", "\u0cd5" };
+      for (int i = 0; i < 200000; i++) {
+         StringBuilder text = new StringBuilder();
+         for (int k = random.nextInt(12); k > 0; k--) text.append(pieces[random.nextInt(pieces.length)]);
+         if (!normalize(text.toString().toCharArray()).equals(Normalizer.normalize(text, Normalizer.Form.NFC))) differences++;
+      }
+      for (char c = 0; c < FIRST_CRITICAL; c++) {
+         int type = Character.getType(c);
+         if ((type == Character.NON_SPACING_MARK) || (type == Character.COMBINING_SPACING_MARK) || (type == Character.ENCLOSING_MARK)
+               || !Normalizer.isNormalized(String.valueOf(c), Normalizer.Form.NFC)) {
+            differences++;
+         }
+      }
+      System.out.println(differences + " differences");
+      for (int round = 0; round < 10; round++) {
+         long plain = benchmark(data, false);
+         long fast = benchmark(data, true);
+         System.out.println(String.format("%d texts: Normalizer %d ms, fast path %d ms", data.size(), plain / 1000000, fast / 1000000));
+      }
+   }
+
+   /**
+    * Helper for the benchmark
+    * 
+    * @return The time needed in ns
+    */
+   private static long benchmark(List<char[]> data, boolean fast) {
+      long start = System.nanoTime();
+      long length = 0;
+      for (char[] chars : data) {
+         length += fast ? normalize(chars).length() : Normalizer.normalize(new String(chars), Normalizer.Form.NFC).length();
+      }
+      if (length < 0) throw new IllegalStateException(); // keep the results alive
+      return System.nanoTime() - start;
+   }
+}
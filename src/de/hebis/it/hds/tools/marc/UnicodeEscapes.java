@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.marc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Weird filter for encoded characters and control characters, used by {@link MarcWrapper#string2Marc(String)}.<br>
+ * Replaces in a single pass:
+ * <dl>
+ * <dt>\\uXXXX</dt>
+ * <dd>by the char and four spaces, so the length of the field in the ISO 2709 record is kept.</dd>
+ * <dt>#29; #30; #31;</dt>
+ * <dd>by the control character</dd>
+ * </dl>
+ * and encodes the result as UTF-8. Strings without escapes are encoded directly. For streams of UTF-8 bytes the same is done by {@link #filter(InputStream)}.<br>
+ * The behavior is the same as of the former regular expression "(\\\\u(\\w{4}))|(#(29|30|31);)": 'XXXX' are any four word characters, and a non hexadecimal value leads to a
+ * {@link NumberFormatException}. Unpaired surrogates are encoded as '?', like {@link String#getBytes(java.nio.charset.Charset)} does.<br>
+ * TODO 'get rid of'
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-05-03 uh First try
+ */
+final class UnicodeEscapes {
+
+   private UnicodeEscapes() {
+   }
+
+   /**
+    * Replace the escapes and encode as UTF-8
+    * 
+    * @param data The raw string
+    * @return The filtered string as UTF-8
+    * @throws NumberFormatException if an escape '\\uXXXX' isn't hexadecimal
+    */
+   static byte[] toUtf8(String data) {
+      int first = nextEscape(data, 0);
+      if (first < 0) return data.getBytes(StandardCharsets.UTF_8); // the usual case
+      Encoder out = new Encoder(data.length() * 3);
+      int pos = 0;
+      for (int escape = first; escape >= 0; escape = nextEscape(data, pos)) {
+         for (int i = pos; i < escape; i++) out.put(data.charAt(i));
+         if (data.charAt(escape) == '\\') {
+            out.put((char) Integer.parseInt(data.substring(escape + 2, escape + 6), 16));
+            // Das konvertierte Zeichen mit Platzhalter ausgeben, weil sich sonst die Feldlänge im Marc ändert.
+            for (int i = 0; i < 4; i++) out.put(' ');
+            pos = escape + 6;
+         } else {
+            // Steuerzeichen
+            out.put((char) ((data.charAt(escape + 1) - '0') * 10 + (data.charAt(escape + 2) - '0')));
+            pos = escape + 4;
+         }
+      }
+      for (int i = pos; i < data.length(); i++) out.put(data.charAt(i));
+      return out.toByteArray();
+   }
+
+   /**
+    * Replace the escapes in a stream of UTF-8 bytes, while the data is read.<br>
+    * Escaped surrogates can't be combined with their counterparts in the UTF-8 input, so they are always replaced by '?'.
+    * 
+    * @param in The raw stream
+    * @return The filtered stream
+    */
+   static InputStream filter(InputStream in) {
+      return new EscapeFilter(in);
+   }
+
+   /**
+    * Helper to find the next escape
+    * 
+    * @param data The raw string
+    * @param from The position to start the search
+    * @return The position of the escape, or -1 if there is none.
+    */
+   private static int nextEscape(String data, int from) {
+      int length = data.length();
+      for (int i = from; i < length; i++) {
+         char c = data.charAt(i);
+         if (c == '\\') {
+            if ((i + 6 <= length) && (data.charAt(i + 1) == 'u') && isWordChar(data.charAt(i + 2)) && isWordChar(data.charAt(i + 3)) && isWordChar(data.charAt(i + 4))
+                  && isWordChar(data.charAt(i + 5))) return i;
+         } else if (c == '#') {
+            if ((i + 4 <= length) && (data.charAt(i + 3) == ';')) {
+               char c1 = data.charAt(i + 1);
+               char c2 = data.charAt(i + 2);
+               if (((c1 == '2') && (c2 == '9')) || ((c1 == '3') && ((c2 == '0') || (c2 == '1')))) return i;
+            }
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Helper for '\w' of java.util.regex (without UNICODE_CHARACTER_CLASS)
+    */
+   private static boolean isWordChar(char c) {
+      return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '_');
+   }
+
+   /**
+    * Filter for UTF-8 bytes. The data is read in chunks, the bytes between the escapes are copied without further inspection.
+    */
+   private static class EscapeFilter extends FilterInputStream {
+      private final byte[] buffer      = new byte[1 << 16];
+      private int          start       = 0;
+      private int          end         = 0;
+      private boolean      eof         = false;
+      private final byte[] replacement = new byte[7];
+      private int          replPos     = 0;
+      private int          replLength  = 0;
+
+      EscapeFilter(InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] single = new byte[1];
+         return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) return 0;
+         if (replPos < replLength) {
+            int count = Math.min(len, replLength - replPos);
+            System.arraycopy(replacement, replPos, b, off, count);
+            replPos += count;
+            return count;
+         }
+         if ((start == end) && !fill(1)) return -1;
+         byte first = buffer[start];
+         if ((first == '\\') || (first == '#')) {
+            fill(6);
+            int matched = match();
+            if (matched > 0) {
+               start += matched;
+               return read(b, off, len);
+            }
+            b[off] = first;
+            start++;
+            return 1;
+         }
+         // copy up to the next candidate of an escape
+         int count = 0;
+         while ((count < len) && (start < end) && (buffer[start] != '\\') && (buffer[start] != '#')) b[off + count++] = buffer[start++];
+         return count;
+      }
+
+      @Override
+      public int available() throws IOException {
+         return (replLength - replPos) + (end - start);
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         byte[] skipped = new byte[(int) Math.min(n, 4096)];
+         int count = read(skipped, 0, skipped.length);
+         return Math.max(0, count);
+      }
+
+      @Override
+      public boolean markSupported() {
+         return false;
+      }
+
+      /**
+       * Helper to check the bytes at 'start' for an escape, and to prepare its replacement.
+       * 
+       * @return The length of the escape, or 0 if there is none.
+       */
+      private int match() {
+         int available = end - start;
+         if (buffer[start] == '\\') {
+            if ((available < 6) || (buffer[start + 1] != 'u')) return 0;
+            for (int i = 2; i < 6; i++) {
+               if ((buffer[start + i] < 0) || !isWordChar((char) buffer[start + i])) return 0;
+            }
+            char c = (char) Integer.parseInt(new String(buffer, start + 2, 4, StandardCharsets.US_ASCII), 16);
+            replLength = 0;
+            if (Character.isSurrogate(c)) {
+               replacement[replLength++] = '?';
+            } else if (c < 0x80) {
+               replacement[replLength++] = (byte) c;
+            } else if (c < 0x800) {
+               replacement[replLength++] = (byte) (0xC0 | (c >> 6));
+               replacement[replLength++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+               replacement[replLength++] = (byte) (0xE0 | (c >> 12));
+               replacement[replLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+               replacement[replLength++] = (byte) (0x80 | (c & 0x3F));
+            }
+            for (int i = 0; i < 4; i++) replacement[replLength++] = ' ';
+            replPos = 0;
+            return 6;
+         }
+         if ((available < 4) || (buffer[start + 3] != ';')) return 0;
+         byte c1 = buffer[start + 1];
+         byte c2 = buffer[start + 2];
+         if (!(((c1 == '2') && (c2 == '9')) || ((c1 == '3') && ((c2 == '0') || (c2 == '1'))))) return 0;
+         replacement[0] = (byte) ((c1 - '0') * 10 + (c2 - '0'));
+         replPos = 0;
+         replLength = 1;
+         return 4;
+      }
+
+      /**
+       * Helper to read more data, until at least 'needed' bytes are buffered or the end of the stream is reached.
+       * 
+       * @return FALSE if no data is left
+       */
+      private boolean fill(int needed) throws IOException {
+         if (end - start >= needed) return true;
+         if (start > 0) { // keep the rest at the beginning
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+         }
+         while (!eof && (end - start < needed)) {
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0) eof = true;
+            else end += count;
+         }
+         return end > start;
+      }
+   }
+
+   /**
+    * Minimal UTF-8 encoder for a sequence of chars. Surrogate pairs are combined, even if the halves come from different sources (input or escape).
+    */
+   private static class Encoder {
+      private byte[] bytes;
+      private int    length      = 0;
+      private char   pendingHigh = 0;
+
+      Encoder(int capacity) {
+         bytes = new byte[capacity];
+      }
+
+      void put(char c) {
+         if (pendingHigh != 0) {
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(c)) {
+               int codePoint = Character.toCodePoint(high, c);
+               ensure(4);
+               bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+               bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+               bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+               bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+               return;
+            }
+            put('?');
+         }
+         ensure(3);
+         if (c < 0x80) {
+            bytes[length++] = (byte) c;
+         } else if (c < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+         } else if (Character.isHighSurrogate(c)) {
+            pendingHigh = c;
+         } else if (Character.isLowSurrogate(c)) {
+            bytes[length++] = '?';
+         } else {
+            bytes[length++] = (byte) (0xE0 | (c >> 12));
+            bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+         }
+      }
+
+      byte[] toByteArray() {
+         if (pendingHigh != 0) {
+            pendingHigh = 0;
+            put('?');
+         }
+         return (length == bytes.length) ? bytes : Arrays.copyOf(bytes, length);
+      }
+
+      private void ensure(int needed) {
+         if (length + needed > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + needed));
+      }
+   }
+}
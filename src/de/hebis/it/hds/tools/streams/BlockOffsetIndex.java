@@ -0,0 +1,347 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sidecar index of the byte offsets of the blocks in a file, e.g. the records found by the {@link MappedBlockScanner}.<br>
+ * The index is written during the first pass by a {@link Writer}. Each block takes two varints: the distance to the start of the previous block and the length. So a record of
+ * some KB costs 3-4 bytes in the index. In memory every 64th offset is kept as sample, to find the entries fast.<br>
+ * With the index a later run can:
+ * <ul>
+ * <li>seek to block N ({@link #offset(long)}) or find the block at a byte offset ({@link #ordinalAt(long)})</li>
+ * <li>fetch a single block by its ordinal ({@link #fetch(FileChannel, long)})</li>
+ * <li>resume the processing from a checkpoint ({@link #blocks(FileChannel, long)}, {@link #saveCheckpoint(Path, long)})</li>
+ * </ul>
+ * An index file truncated by a crash is valid up to the last complete entry.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-27 uh First try
+ */
+public class BlockOffsetIndex {
+   static final Logger         LOG        = LogManager.getLogger(BlockOffsetIndex.class);
+   private static final byte[] MAGIC      = "HdsBOI1\n".getBytes(StandardCharsets.US_ASCII);
+   /** Every SAMPLERATE entries the absolute offset is kept in memory */
+   private static final int    SAMPLERATE = 64;
+   private final byte[]        data;
+   private final long          count;
+   private final long[]        sampleOffsets;
+   private final int[]         samplePositions;
+
+   private BlockOffsetIndex(byte[] data, long count, long[] sampleOffsets, int[] samplePositions) {
+      this.data = data;
+      this.count = count;
+      this.sampleOffsets = sampleOffsets;
+      this.samplePositions = samplePositions;
+   }
+
+   /**
+    * Load an index
+    * 
+    * @param indexFile The file written by a {@link Writer}
+    * @return The index
+    * @throws IOException if the file can't be read or is not an index
+    */
+   public static BlockOffsetIndex load(Path indexFile) throws IOException {
+      byte[] raw = Files.readAllBytes(indexFile);
+      if ((raw.length < MAGIC.length) || !Arrays.equals(MAGIC, Arrays.copyOf(raw, MAGIC.length))) throw new IOException(indexFile + " is not a block offset index.");
+      byte[] data = Arrays.copyOfRange(raw, MAGIC.length, raw.length);
+      long[] sampleOffsets = new long[16];
+      int[] samplePositions = new int[16];
+      long count = 0;
+      long offset = 0;
+      int pos = 0;
+      while (true) {
+         int entryStart = pos;
+         long delta = 0;
+         long length = -1;
+         pos = skipVarint(data, pos);
+         if (pos > 0) {
+            delta = readVarint(data, entryStart);
+            int lengthStart = pos;
+            pos = skipVarint(data, pos);
+            if (pos > 0) length = readVarint(data, lengthStart);
+         }
+         if (length < 0) { // end of the index, or a truncated entry
+            if (entryStart < data.length) LOG.warn(indexFile + ": Incomplete entry at the end is ignored.");
+            data = Arrays.copyOf(data, entryStart);
+            break;
+         }
+         offset += delta;
+         if ((count % SAMPLERATE) == 0) {
+            int sample = (int) (count / SAMPLERATE);
+            if (sample == sampleOffsets.length) {
+               sampleOffsets = Arrays.copyOf(sampleOffsets, sample * 2);
+               samplePositions = Arrays.copyOf(samplePositions, sample * 2);
+            }
+            sampleOffsets[sample] = offset;
+            samplePositions[sample] = entryStart;
+         }
+         count++;
+      }
+      int samples = (int) ((count + SAMPLERATE - 1) / SAMPLERATE);
+      if (LOG.isDebugEnabled()) LOG.debug(indexFile + ": " + count + " blocks in " + data.length + " bytes.");
+      return new BlockOffsetIndex(data, count, Arrays.copyOf(sampleOffsets, samples), Arrays.copyOf(samplePositions, samples));
+   }
+
+   /**
+    * @return The number of blocks in the index
+    */
+   public long count() {
+      return count;
+   }
+
+   /**
+    * @param ordinal Number of the block (0 based)
+    * @return The byte offset of the block within the file
+    */
+   public long offset(long ordinal) {
+      return entry(ordinal)[0];
+   }
+
+   /**
+    * @param ordinal Number of the block (0 based)
+    * @return The length of the block in bytes
+    */
+   public int length(long ordinal) {
+      return (int) entry(ordinal)[1];
+   }
+
+   /**
+    * Find the block at a byte offset, e.g. to resume after the last processed byte.
+    * 
+    * @param byteOffset Position within the file
+    * @return The ordinal of the block containing the offset, or of the first block behind it. {@link #count()} if there is none.
+    */
+   public long ordinalAt(long byteOffset) {
+      int sample = Arrays.binarySearch(sampleOffsets, byteOffset);
+      if (sample < 0) sample = Math.max(0, -sample - 2);
+      long ordinal = (long) sample * SAMPLERATE;
+      if (ordinal >= count) return count;
+      int pos = samplePositions[sample];
+      long offset = sampleOffsets[sample];
+      pos = skipVarint(data, pos); // the delta is included in the sample
+      while (true) {
+         long length = readVarint(data, pos);
+         pos = skipVarint(data, pos);
+         if (offset + length > byteOffset) return ordinal;
+         if (++ordinal >= count) return count;
+         offset += readVarint(data, pos);
+         pos = skipVarint(data, pos);
+      }
+   }
+
+   /**
+    * Read a single block
+    * 
+    * @param file The indexed file
+    * @param ordinal Number of the block (0 based)
+    * @return A copy of the block
+    * @throws IOException if the file can't be read
+    */
+   public ByteBlock fetch(FileChannel file, long ordinal) throws IOException {
+      long[] entry = entry(ordinal);
+      ByteBuffer buffer = ByteBuffer.allocate((int) entry[1]);
+      while (buffer.hasRemaining()) {
+         if (file.read(buffer, entry[0] + buffer.position()) < 0) throw new IOException("The file is shorter than the index, block " + ordinal + " is missing.");
+      }
+      buffer.flip();
+      return new ByteBlock(buffer, entry[0]);
+   }
+
+   /**
+    * Stream of the blocks, beginning at the given ordinal. The blocks are read by their offsets, the file is not scanned.
+    * 
+    * @param file The indexed file. It has to be closed by the caller.
+    * @param fromOrdinal Number of the first block (e.g. a checkpoint)
+    * @return The blocks from 'fromOrdinal' to the end of the index
+    */
+   public Stream<ByteBlock> blocks(FileChannel file, long fromOrdinal) {
+      return LongStream.range(Math.max(0, fromOrdinal), count).mapToObj(ordinal -> {
+         try {
+            return fetch(file, ordinal);
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      });
+   }
+
+   /**
+    * Store a checkpoint (the ordinal of the next block to process). The file is replaced atomically.
+    * 
+    * @param checkpointFile The file for the checkpoint
+    * @param ordinal The ordinal of the next block to process
+    * @throws IOException if the file can't be written
+    */
+   public static void saveCheckpoint(Path checkpointFile, long ordinal) throws IOException {
+      Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+      Files.write(temp, Long.toString(ordinal).getBytes(StandardCharsets.US_ASCII));
+      Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * Read a checkpoint
+    * 
+    * @param checkpointFile The file of the checkpoint
+    * @return The ordinal of the next block to process, 0 if there is no checkpoint.
+    * @throws IOException if the file can't be read
+    */
+   public static long loadCheckpoint(Path checkpointFile) throws IOException {
+      if (!Files.exists(checkpointFile)) return 0;
+      return Long.parseLong(new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim());
+   }
+
+   /**
+    * Helper to decode the entry of a block
+    * 
+    * @return [offset, length]
+    */
+   private long[] entry(long ordinal) {
+      if ((ordinal < 0) || (ordinal >= count)) throw new IndexOutOfBoundsException("ordinal: " + ordinal + ", count: " + count);
+      int sample = (int) (ordinal / SAMPLERATE);
+      int pos = samplePositions[sample];
+      long offset = sampleOffsets[sample];
+      pos = skipVarint(data, pos); // the delta is included in the sample
+      for (long i = (long) sample * SAMPLERATE; i < ordinal; i++) {
+         pos = skipVarint(data, pos); // length
+         offset += readVarint(data, pos);
+         pos = skipVarint(data, pos);
+      }
+      return new long[] { offset, readVarint(data, pos) };
+   }
+
+   /**
+    * Helper to decode a varint (7 bits per byte, low bits first)
+    */
+   private static long readVarint(byte[] data, int pos) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = data[pos++];
+         value |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while (b < 0);
+      return value;
+   }
+
+   /**
+    * Helper to skip a varint
+    * 
+    * @return The position behind the varint, or -1 if the varint is incomplete.
+    */
+   private static int skipVarint(byte[] data, int pos) {
+      while (pos < data.length) {
+         if (data[pos++] >= 0) return pos;
+      }
+      return -1;
+   }
+
+   /**
+    * Writer of an index, to be used in the first pass over the file.<br>
+    * The blocks have to be given in the order of the file, e.g. <code>scanner.peek(writer)</code> in a sequential stream or <code>forEachOrdered(writer)</code>.
+    */
+   public static class Writer implements Consumer<ByteBlock>, Closeable {
+      private final OutputStream out;
+      private long               previousOffset = 0;
+      private long               count          = 0;
+
+      /**
+       * Instance a new writer. An existing file is replaced.
+       * 
+       * @param indexFile The file for the index
+       * @throws IOException if the file can't be written
+       */
+      public Writer(Path indexFile) throws IOException {
+         out = new BufferedOutputStream(Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 1 << 16);
+         out.write(MAGIC);
+      }
+
+      /**
+       * Add a block to the index
+       * 
+       * @param offset The offset of the block within the file
+       * @param length The length of the block
+       * @throws IOException if the index can't be written
+       */
+      public synchronized void add(long offset, int length) throws IOException {
+         if (offset < previousOffset) throw new IllegalArgumentException("The blocks are not in the order of the file (" + offset + " < " + previousOffset + ").");
+         writeVarint(offset - previousOffset);
+         writeVarint(length);
+         previousOffset = offset;
+         count++;
+      }
+
+      @Override
+      public void accept(ByteBlock block) {
+         try {
+            add(block.getOffset(), block.length());
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      /**
+       * @return The number of blocks added so far
+       */
+      public synchronized long count() {
+         return count;
+      }
+
+      /**
+       * Write the buffered entries to the file, e.g. together with a checkpoint.
+       * 
+       * @throws IOException if the index can't be written
+       */
+      public synchronized void flush() throws IOException {
+         out.flush();
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+         out.close();
+      }
+
+      private void writeVarint(long value) throws IOException {
+         while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+         }
+         out.write((int) value);
+      }
+   }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * View of a block of bytes found by the {@link MappedBlockScanner}.<br>
+ * The bytes are not copied, the view refers to the mapping of the file. The content is decoded not before it is requested.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-21 uh First try
+ */
+public class ByteBlock {
+   private final ByteBuffer data;
+   private final long       offset;
+
+   /**
+    * Instance a new view
+    * 
+    * @param data The bytes of the block. (position 0 up to the limit)
+    * @param offset Position of the first byte within the file
+    */
+   public ByteBlock(ByteBuffer data, long offset) {
+      this.data = data;
+      this.offset = offset;
+   }
+
+   /**
+    * @return Position of the first byte within the file
+    */
+   public long getOffset() {
+      return offset;
+   }
+
+   /**
+    * @return The number of bytes
+    */
+   public int length() {
+      return data.limit();
+   }
+
+   /**
+    * @param index Index of the byte within the block
+    * @return The byte at the index
+    */
+   public byte byteAt(int index) {
+      return data.get(index);
+   }
+
+   /**
+    * @return A new read only buffer over the bytes of the block (no copy)
+    */
+   public ByteBuffer asByteBuffer() {
+      return data.asReadOnlyBuffer();
+   }
+
+   /**
+    * @return A copy of the bytes
+    */
+   public byte[] toByteArray() {
+      byte[] bytes = new byte[data.limit()];
+      data.duplicate().get(bytes);
+      return bytes;
+   }
+
+   /**
+    * Decode the block
+    * 
+    * @param charset The encoding of the bytes
+    * @return The content of the block
+    */
+   public String toString(Charset charset) {
+      if (data.hasArray()) return new String(data.array(), data.arrayOffset(), data.limit(), charset);
+      return new String(toByteArray(), charset);
+   }
+
+   /**
+    * Decode the block as UTF-8
+    */
+   @Override
+   public String toString() {
+      return toString(StandardCharsets.UTF_8);
+   }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Variant of the {@link TextBlockSpliterator}, delivering each block as one {@link TextBlock} instead of a list of strings.<br>
+ * The lines are taken from a stream of strings, or read from a {@link Reader} directly into the buffer of the block. In the 'recycle' mode the same {@link TextBlock} is reused
+ * for all blocks. Steps keeping the blocks (e.g. sorted() or collect()) need the normal mode or {@link TextBlock#copy()}.<br>
+ * Only a {@link Reader} in 'recycle' mode creates no garbage per line: The lines are tested by the patterns as a reused {@link CharSequence} view (see
+ * {@link #contains(String)}), and the buffers are kept. A stream of strings allocates each line anyway, the recycling saves only the list and the joining. For bytes (UTF-8 or
+ * ISO 2709) the {@link ByteBlock}s of the {@link MappedBlockScanner} avoid the decoding too.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-24 uh First try
+ * @version 2017-05-15 uh Reader without strings per line
+ */
+public class CharBlockSpliterator implements Spliterator<TextBlock> {
+   static final Logger                           LOG         = LogManager.getLogger(CharBlockSpliterator.class);
+   private static final int                      BUFFERSIZE  = 1 << 16;
+   private final Spliterator<String>             source;
+   private final Reader                          reader;
+   private final Predicate<? super CharSequence> startPattern;
+   private final Predicate<? super CharSequence> endPattern;
+   private final boolean                         recycle;
+   private final Consumer<String>                lineConsumer;
+   private TextBlock                             textBlock   = null;
+   private TextBlock                             recycled    = null;
+   private boolean                               complete    = false;
+   private int                                   capacity    = 1024;
+   // the buffers of the reader mode
+   private char[]                                buffer      = null;
+   private int                                   bufferPos   = 0;
+   private int                                   bufferLimit = 0;
+   private boolean                               skipLf      = false;
+   private char[]                                line        = null;
+   private CharBuffer                            lineView    = null;
+
+   /**
+    * Instance a new CharBlockSpliterator.
+    * 
+    * @param lines A sequential stream of strings (e.g. {@link java.nio.file.Files#lines(java.nio.file.Path)}
+    * @param blockStartPattern Pattern to identify the first line of a block
+    * @param blockEndPattern Pattern to identify the last line of a block
+    * @param recycle Reuse the {@link TextBlock} for the next block
+    */
+   public CharBlockSpliterator(Spliterator<String> lines, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern, boolean recycle) {
+      source = lines;
+      reader = null;
+      startPattern = line -> blockStartPattern.test((String) line); // the lines of the source are strings
+      endPattern = line -> blockEndPattern.test((String) line);
+      this.recycle = recycle;
+      lineConsumer = line -> {
+         if (startLine(line)) textBlock.append(line);
+      };
+   }
+
+   /**
+    * Instance a new CharBlockSpliterator, reading the lines (terminated by '\n', '\r' or "\r\n") without strings.<br>
+    * The patterns get a view of the line, which is valid only during the test.
+    * 
+    * @param text The text, e.g. {@link java.nio.file.Files#newBufferedReader(java.nio.file.Path)}. It has to be closed by the caller.
+    * @param blockStartPattern Pattern to identify the first line of a block
+    * @param blockEndPattern Pattern to identify the last line of a block
+    * @param recycle Reuse the {@link TextBlock} for the next block
+    */
+   public CharBlockSpliterator(Reader text, Predicate<? super CharSequence> blockStartPattern, Predicate<? super CharSequence> blockEndPattern, boolean recycle) {
+      source = null;
+      reader = text;
+      startPattern = blockStartPattern;
+      endPattern = blockEndPattern;
+      this.recycle = recycle;
+      lineConsumer = null;
+      buffer = new char[BUFFERSIZE];
+      line = new char[256];
+      lineView = CharBuffer.wrap(line);
+   }
+
+   /**
+    * Pattern for the reader mode, without strings
+    * 
+    * @param marker The characters to find in the line
+    * @return A pattern matching all lines containing the marker
+    */
+   public static Predicate<CharSequence> contains(String marker) {
+      char[] chars = marker.toCharArray();
+      return text -> {
+         int last = text.length() - chars.length;
+         for (int i = 0; i <= last; i++) {
+            int k = 0;
+            while ((k < chars.length) && (text.charAt(i + k) == chars[k])) k++;
+            if (k == chars.length) return true;
+         }
+         return false;
+      };
+   }
+
+   @Override
+   public boolean tryAdvance(Consumer<? super TextBlock> action) {
+      while (!complete) { // Consume lines until the end of a block is found
+         if (source != null) {
+            if (!source.tryAdvance(lineConsumer)) return false;
+         } else {
+            int length = readLine();
+            if (length < 0) return false;
+            lineView.limit(length);
+            if (startLine(lineView)) textBlock.append(line, 0, length);
+         }
+      }
+      TextBlock found = textBlock;
+      textBlock = null; // prepare for next Block
+      complete = false;
+      capacity = Math.max(capacity, found.length());
+      action.accept(found);
+      if (recycle) recycled = found;
+      return true;
+   }
+
+   @Override
+   public Spliterator<TextBlock> trySplit() {
+      return null;
+   }
+
+   @Override
+   public long estimateSize() {
+      return Long.MAX_VALUE;
+   }
+
+   @Override
+   public int characteristics() {
+      return ORDERED | NONNULL;
+   }
+
+   /**
+    * Helper to test a line against the patterns
+    * 
+    * @return TRUE if the line belongs to a block and has to be appended
+    */
+   private boolean startLine(CharSequence text) {
+      if (textBlock == null) { // look for a new block
+         if (!startPattern.test(text)) {
+            if (LOG.isTraceEnabled()) LOG.trace("noise:" + text);
+            return false;
+         }
+         textBlock = newBlock();
+      }
+      complete = endPattern.test(text);
+      return true;
+   }
+
+   /**
+    * Helper to read the next line into {@link #line}
+    * 
+    * @return The length of the line without line terminator, -1 at the end of the text.
+    */
+   private int readLine() {
+      try {
+         int length = 0;
+         while (true) {
+            if (bufferPos == bufferLimit) {
+               bufferLimit = reader.read(buffer, 0, buffer.length);
+               bufferPos = 0;
+               if (bufferLimit <= 0) {
+                  bufferLimit = 0;
+                  return (length == 0) ? -1 : length;
+               }
+            }
+            if (skipLf) { // the second char of "\r\n"
+               skipLf = false;
+               if (buffer[bufferPos] == '\n') bufferPos++;
+               continue;
+            }
+            int from = bufferPos;
+            while ((bufferPos < bufferLimit) && (buffer[bufferPos] != '\n') && (buffer[bufferPos] != '\r')) bufferPos++;
+            int count = bufferPos - from;
+            if (length + count > line.length) {
+               line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+               lineView = CharBuffer.wrap(line);
+            }
+            System.arraycopy(buffer, from, line, length, count);
+            length += count;
+            if (bufferPos < bufferLimit) { // line terminator found
+               skipLf = (buffer[bufferPos++] == '\r');
+               return length;
+            }
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * Helper to get an empty block, the recycled one if possible.
+    */
+   private TextBlock newBlock() {
+      if (recycled == null) return new TextBlock(capacity);
+      recycled.clear();
+      return recycled;
+   }
+}
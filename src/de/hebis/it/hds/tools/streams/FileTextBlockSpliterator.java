@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splittable variant of the {@link TextBlockSpliterator}, reading a file (UTF-8) directly.<br>
+ * The spliterator is split by byte ranges. A split starts at the first line after its range start and skips all lines until the start pattern matches. It owns all blocks starting
+ * within its range, the last block may be read beyond the end of the range.<br>
+ * So a parallel stream over a large file (e.g. a MarcXML dump) uses all cores.
+ * <dl>
+ * <dt>Limitations</dt>
+ * <dd>The markers may not distributed over two lines.</dd>
+ * <dd>Lines inside of a block may not match the start pattern.</dd>
+ * <dd>Lines are terminated by '\n' or "\r\n".</dd>
+ * </dl>
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-20 uh First try
+ */
+public class FileTextBlockSpliterator implements Spliterator<List<String>> {
+   static final Logger             LOG          = LogManager.getLogger(FileTextBlockSpliterator.class);
+   private static final int        BUFFERSIZE   = 1 << 16;
+   /** Ranges smaller than this are not split any more */
+   private static final long       MINSPLIT     = 1 << 20;
+   private final FileChannel       channel;
+   private final Predicate<String> startPattern;
+   private final Predicate<String> endPattern;
+   private final long              end;
+   private long                    position;
+   private boolean                 resync;
+   private final byte[]            buffer       = new byte[BUFFERSIZE];
+   private int                     bufferPos    = 0;
+   private int                     bufferLimit  = 0;
+   private byte[]                  line         = new byte[256];
+   private long                    blockCount   = 0;
+   private long                    blockBytes   = 0;
+   private long                    avgBlockSize = 1024;
+
+   /**
+    * Instance a new spliterator for a whole file.
+    * 
+    * @param file The opened file. It has to be closed by the caller.
+    * @param blockStartPattern Pattern to identify the first line of a block
+    * @param blockEndPattern Pattern to identify the last line of a block
+    * @throws IOException if the size of the file can't be read
+    */
+   public FileTextBlockSpliterator(FileChannel file, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern) throws IOException {
+      this(file, blockStartPattern, blockEndPattern, 0, file.size(), false);
+   }
+
+   private FileTextBlockSpliterator(FileChannel file, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern, long start, long end, boolean resync) {
+      channel = file;
+      startPattern = blockStartPattern;
+      endPattern = blockEndPattern;
+      position = start;
+      this.end = end;
+      this.resync = resync;
+   }
+
+   @Override
+   public boolean tryAdvance(Consumer<? super List<String>> action) {
+      try {
+         if (resync) {
+            skipToNextLine();
+            resync = false;
+         }
+         List<String> textBlock = null;
+         long blockStart = position;
+         while (true) {
+            if ((textBlock == null) && (position >= end)) return false; // no block starts in the range
+            long lineStart = position;
+            String text = readLine();
+            if (text == null) return false; // EOF, an incomplete block is dropped
+            if (textBlock == null) {
+               if (!startPattern.test(text)) {
+                  if (LOG.isTraceEnabled()) LOG.trace("noise:" + text);
+                  continue;
+               }
+               textBlock = new ArrayList<>();
+               blockStart = lineStart;
+            }
+            textBlock.add(text);
+            if (endPattern.test(text)) break;
+         }
+         blockCount++;
+         blockBytes += position - blockStart;
+         action.accept(textBlock);
+         return true;
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   public Spliterator<List<String>> trySplit() {
+      long remaining = end - position;
+      if (remaining < 2 * MINSPLIT) return null;
+      long mid = position + remaining / 2;
+      FileTextBlockSpliterator prefix = new FileTextBlockSpliterator(channel, startPattern, endPattern, position, mid, resync);
+      prefix.avgBlockSize = averageBlockSize();
+      avgBlockSize = prefix.avgBlockSize;
+      // continue behind the prefix, the buffered data is obsolete
+      position = mid;
+      resync = true;
+      bufferPos = 0;
+      bufferLimit = 0;
+      return prefix;
+   }
+
+   /**
+    * The estimation is based on the remaining bytes and the average size of the blocks seen so far.
+    */
+   @Override
+   public long estimateSize() {
+      return Math.max(0, end - position) / averageBlockSize() + 1;
+   }
+
+   /**
+    * The number of blocks is estimated only, so SIZED or SUBSIZED can't be reported.
+    */
+   @Override
+   public int characteristics() {
+      return ORDERED | NONNULL;
+   }
+
+   /**
+    * Helper to get the average size of the blocks read so far.
+    */
+   private long averageBlockSize() {
+      return (blockCount == 0) ? avgBlockSize : Math.max(1, blockBytes / blockCount);
+   }
+
+   /**
+    * Helper to move to the beginning of the first line starting at or behind the current position.
+    */
+   private void skipToNextLine() throws IOException {
+      if (position == 0) return;
+      position--; // if the previous byte is a line feed, the current position starts a line
+      while (true) {
+         if ((bufferPos == bufferLimit) && !fill()) return;
+         position++;
+         if (buffer[bufferPos++] == '\n') return;
+      }
+   }
+
+   /**
+    * Helper to read the next line (UTF-8).
+    * 
+    * @return The line without line terminator, or NULL at the end of the file.
+    */
+   private String readLine() throws IOException {
+      int len = 0;
+      while (true) {
+         if ((bufferPos == bufferLimit) && !fill()) {
+            if (len == 0) return null;
+            break;
+         }
+         // copy up to the next line feed
+         int from = bufferPos;
+         while ((bufferPos < bufferLimit) && (buffer[bufferPos] != '\n')) bufferPos++;
+         int count = bufferPos - from;
+         if (len + count > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, len + count));
+         System.arraycopy(buffer, from, line, len, count);
+         len += count;
+         position += count;
+         if (bufferPos < bufferLimit) { // line feed found
+            bufferPos++;
+            position++;
+            break;
+         }
+      }
+      if ((len > 0) && (line[len - 1] == '\r')) len--;
+      return new String(line, 0, len, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Helper to read the next chunk of the file, starting at the current position.
+    * 
+    * @return FALSE at the end of the file
+    */
+   private boolean fill() throws IOException {
+      int count = channel.read(ByteBuffer.wrap(buffer), position);
+      bufferPos = 0;
+      bufferLimit = Math.max(0, count);
+      return count > 0;
+   }
+}
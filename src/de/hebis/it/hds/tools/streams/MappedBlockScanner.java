@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Spliterator to find blocks of bytes in a memory mapped file, without decoding the content.<br>
+ * Two kinds of blocks are supported:
+ * <dl>
+ * <dt>markers</dt>
+ * <dd>The block starts with the first byte of the start marker and ends with the last byte of the end marker (e.g. "&lt;record" and "&lt;/record&gt;"). The bytes between the
+ * blocks are ignored.</dd>
+ * <dt>terminator</dt>
+ * <dd>The block ends with the terminator (e.g. 0x1D for ISO 2709), the next block starts directly behind.</dd>
+ * </dl>
+ * The blocks are delivered as {@link ByteBlock}, a view into the mapping. Like the {@link FileTextBlockSpliterator} the scanner is split by byte ranges, a range owns all blocks
+ * starting within. The file is mapped in windows, so even files larger than 2GB are supported. A single block has to be smaller than 2GB.
+ * <dl>
+ * <dt>Limitations</dt>
+ * <dd>The start marker may not appear inside of a block.</dd>
+ * <dd>An incomplete block at the end of the file is dropped.</dd>
+ * </dl>
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-21 uh First try
+ */
+public class MappedBlockScanner implements Spliterator<ByteBlock> {
+   static final Logger       LOG          = LogManager.getLogger(MappedBlockScanner.class);
+   /** Preferred size of a mapping */
+   private static final long WINDOWSIZE   = 1 << 28;
+   /** Ranges smaller than this are not split any more */
+   private static final long MINSPLIT     = 1 << 20;
+   private final FileChannel channel;
+   private final long        fileSize;
+   private final byte[]      startMarker;
+   private final byte[]      endMarker;
+   private final long        end;
+   private long              position;
+   private boolean           resync;
+   private MappedByteBuffer  window       = null;
+   private long              windowStart  = 0;
+   private long              windowEnd    = 0;
+   private long              blockCount   = 0;
+   private long              blockBytes   = 0;
+   private long              avgBlockSize = 1024;
+
+   /**
+    * Instance a new scanner for blocks with start and end markers
+    * 
+    * @param file The opened file. It has to be closed by the caller.
+    * @param blockStart Byte sequence at the start of each block
+    * @param blockEnd Byte sequence at the end of each block
+    * @throws IOException if the size of the file can't be read
+    */
+   public MappedBlockScanner(FileChannel file, byte[] blockStart, byte[] blockEnd) throws IOException {
+      this(file, file.size(), blockStart.clone(), blockEnd.clone(), 0, file.size(), false);
+      if ((blockStart.length == 0) || (blockEnd.length == 0)) throw new IllegalArgumentException("Empty markers are not supported.");
+   }
+
+   /**
+    * Instance a new scanner for blocks ending with a terminator
+    * 
+    * @param file The opened file. It has to be closed by the caller.
+    * @param terminator The last byte of each block (e.g. 0x1D for ISO 2709)
+    * @throws IOException if the size of the file can't be read
+    */
+   public MappedBlockScanner(FileChannel file, byte terminator) throws IOException {
+      this(file, file.size(), null, new byte[] { terminator }, 0, file.size(), false);
+   }
+
+   private MappedBlockScanner(FileChannel file, long fileSize, byte[] blockStart, byte[] blockEnd, long start, long end, boolean resync) {
+      channel = file;
+      this.fileSize = fileSize;
+      startMarker = blockStart;
+      endMarker = blockEnd;
+      position = start;
+      this.end = end;
+      this.resync = resync;
+   }
+
+   /**
+    * Factory for a new stream of blocks with start and end markers
+    * 
+    * @param file The file to read
+    * @param blockStart Byte sequence at the start of each block
+    * @param blockEnd Byte sequence at the end of each block
+    * @param parallel May the output stream processed in parallel or not
+    * @return A stream of blocks. The stream should be closed to release the file.
+    */
+   public static Stream<ByteBlock> toByteBlocks(Path file, byte[] blockStart, byte[] blockEnd, boolean parallel) {
+      try {
+         FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+         return stream(channel, new MappedBlockScanner(channel, blockStart, blockEnd), parallel);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * Factory for a new stream of blocks ending with a terminator
+    * 
+    * @param file The file to read
+    * @param terminator The last byte of each block (e.g. 0x1D for ISO 2709)
+    * @param parallel May the output stream processed in parallel or not
+    * @return A stream of blocks. The stream should be closed to release the file.
+    */
+   public static Stream<ByteBlock> toByteBlocks(Path file, byte terminator, boolean parallel) {
+      try {
+         FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+         return stream(channel, new MappedBlockScanner(channel, terminator), parallel);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * Helper to build a stream, which closes the channel.
+    */
+   private static Stream<ByteBlock> stream(FileChannel channel, MappedBlockScanner scanner, boolean parallel) {
+      return StreamSupport.stream(scanner, parallel).onClose(() -> {
+         try {
+            channel.close();
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      });
+   }
+
+   @Override
+   public boolean tryAdvance(Consumer<? super ByteBlock> action) {
+      try {
+         if (resync) {
+            resync();
+            resync = false;
+         }
+         long blockStart = position;
+         if (startMarker != null) {
+            blockStart = find(startMarker, position, -1);
+            if (blockStart < 0) blockStart = fileSize;
+         }
+         if (blockStart >= end) { // no block starts in the range
+            position = Math.max(position, end);
+            return false;
+         }
+         long blockEnd = find(endMarker, (startMarker == null) ? blockStart : blockStart + startMarker.length, blockStart);
+         if (blockEnd < 0) { // EOF, an incomplete block is dropped
+            if (LOG.isDebugEnabled()) LOG.debug("Incomplete block at offset " + blockStart + " is ignored.");
+            position = fileSize;
+            return false;
+         }
+         blockEnd += endMarker.length;
+         position = blockEnd;
+         blockCount++;
+         blockBytes += blockEnd - blockStart;
+         ByteBuffer view = window.duplicate();
+         view.limit((int) (blockEnd - windowStart));
+         view.position((int) (blockStart - windowStart));
+         action.accept(new ByteBlock(view.slice(), blockStart));
+         return true;
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   public Spliterator<ByteBlock> trySplit() {
+      long remaining = end - position;
+      if (remaining < 2 * MINSPLIT) return null;
+      long mid = position + remaining / 2;
+      MappedBlockScanner prefix = new MappedBlockScanner(channel, fileSize, startMarker, endMarker, position, mid, resync);
+      prefix.avgBlockSize = averageBlockSize();
+      avgBlockSize = prefix.avgBlockSize;
+      position = mid;
+      resync = true;
+      return prefix;
+   }
+
+   /**
+    * The estimation is based on the remaining bytes and the average size of the blocks seen so far.
+    */
+   @Override
+   public long estimateSize() {
+      return Math.max(0, end - position) / averageBlockSize() + 1;
+   }
+
+   /**
+    * The number of blocks is estimated only, so SIZED or SUBSIZED can't be reported.
+    */
+   @Override
+   public int characteristics() {
+      return ORDERED | NONNULL | IMMUTABLE;
+   }
+
+   /**
+    * Helper to get the average size of the blocks read so far.
+    */
+   private long averageBlockSize() {
+      return (blockCount == 0) ? avgBlockSize : Math.max(1, blockBytes / blockCount);
+   }
+
+   /**
+    * Helper to move to the first possible block start after a split.<br>
+    * Blocks with markers are found by the start marker anyway. Blocks with a terminator start directly behind a terminator.
+    */
+   private void resync() throws IOException {
+      if ((startMarker != null) || (position == 0)) return;
+      long terminator = find(endMarker, position - 1, -1);
+      position = (terminator < 0) ? fileSize : terminator + 1;
+   }
+
+   /**
+    * Helper to find a byte sequence in the file.<br>
+    * If the sequence is not within the current window, the file is mapped again.
+    * 
+    * @param pattern The bytes to look for
+    * @param from The position to start the search
+    * @param anchor The position which has to stay in the same mapping as the result, negative values if only the result counts.
+    * @return The position of the first byte of the sequence, or -1 if the sequence is not found.
+    * @throws IOException if the file can't be mapped
+    */
+   private long find(byte[] pattern, long from, long anchor) throws IOException {
+      long candidate = from;
+      byte first = pattern[0];
+      while (true) {
+         if ((candidate < windowStart) || (candidate >= windowEnd)) {
+            if (fileSize - candidate < pattern.length) return -1;
+            map((anchor < 0) ? candidate : anchor);
+         }
+         int last = (int) (windowEnd - windowStart) - pattern.length;
+         int i = (int) (candidate - windowStart);
+         for (; i <= last; i++) {
+            if (window.get(i) != first) continue;
+            int k = 1;
+            while ((k < pattern.length) && (window.get(i + k) == pattern[k])) k++;
+            if (k == pattern.length) return windowStart + i;
+         }
+         if (windowEnd >= fileSize) return -1;
+         candidate = windowStart + i;
+         map((anchor < 0) ? candidate : anchor);
+      }
+   }
+
+   /**
+    * Helper to map a new window, starting at the given position.<br>
+    * If the window would not grow (a very large block), the size is doubled.
+    * 
+    * @param start The first position of the new window
+    * @throws IOException if the file can't be mapped
+    */
+   private void map(long start) throws IOException {
+      long size = WINDOWSIZE;
+      if ((start >= windowStart) && (start < windowEnd)) size = Math.max(size, 2 * (windowEnd - start));
+      size = Math.min(size, fileSize - start);
+      if (size > Integer.MAX_VALUE) throw new IOException("The block at offset " + start + " is larger than 2GB.");
+      if (LOG.isTraceEnabled()) LOG.trace("map " + start + " +" + size);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+      windowStart = start;
+      windowEnd = start + size;
+   }
+
+   /**
+    * Poor man's test harness.<br>
+    * Counts the blocks of a file with the {@link TextBlockSpliterator} and with the {@link MappedBlockScanner}, and prints the elapsed times.
+    * 
+    * @param args [0] the file, [1] the start marker, [2] the end marker. (default "&lt;record" and "&lt;/record&gt;")
+    */
+   public static void main(String[] args) {
+      Path file = Paths.get(args[0]);
+      String start = (args.length > 1) ? args[1] : "<record";
+      String end = (args.length > 2) ? args[2] : "</record>";
+      for (int i = 0; i < 3; i++) {
+         long time = System.currentTimeMillis();
+         long lines;
+         try (Stream<String> source = java.nio.file.Files.lines(file)) {
+            lines = TextBlockSpliterator.toTextBlocks(source, line -> line.contains(start), line -> line.contains(end), false).count();
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+         long lineTime = System.currentTimeMillis() - time;
+         time = System.currentTimeMillis();
+         long blocks;
+         try (Stream<ByteBlock> source = toByteBlocks(file, start.getBytes(StandardCharsets.UTF_8), end.getBytes(StandardCharsets.UTF_8), false)) {
+            blocks = source.count();
+         }
+         long blockTime = System.currentTimeMillis() - time;
+         time = System.currentTimeMillis();
+         long parallelBlocks;
+         try (Stream<ByteBlock> source = toByteBlocks(file, start.getBytes(StandardCharsets.UTF_8), end.getBytes(StandardCharsets.UTF_8), true)) {
+            parallelBlocks = source.count();
+         }
+         long parallelTime = System.currentTimeMillis() - time;
+         System.out.println("lines: " + lines + " blocks in " + lineTime + "ms, mapped: " + blocks + " blocks in " + blockTime + "ms, mapped parallel: " + parallelBlocks
+               + " blocks in " + parallelTime + "ms");
+      }
+   }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.hebis.it.hds.tools.concurrent.OrderedResultIterator;
+import de.hebis.it.hds.tools.concurrent.WaitingNamedExecutorService;
+
+/**
+ * Input stream to decompress block gzipped files (BGZF, e.g. written by 'bgzip') on several cores.<br>
+ * BGZF is a series of small gzip members, each member holds its own compressed size in the extra field 'BC'. So the members can be cut out without decompression, and are inflated
+ * in parallel by a {@link WaitingNamedExecutorService}. The {@link OrderedResultIterator} delivers the data in the original order.<br>
+ * Other gzip files (single or multi member without 'BC') are read by a plain {@link GZIPInputStream}, because the boundaries of the members are unknown before the inflation.<br>
+ * Typical use: <code>TextBlockSpliterator.toTextBlocks(ParallelGzipInputStream.lines(file, 4), start, end, false)</code>
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-26 uh First try
+ */
+public class ParallelGzipInputStream extends InputStream {
+   static final Logger                         LOG        = LogManager.getLogger(ParallelGzipInputStream.class);
+   private static final int                    FEXTRA     = 4;
+   private static final int                    FNAME      = 8;
+   private static final int                    FCOMMENT   = 16;
+   private static final int                    FHCRC      = 2;
+   /** A BGZF member inflates to 64 KiB at most */
+   private static final int                    MAXISIZE   = 1 << 16;
+   private final FileChannel                   channel;
+   private final InputStream                   fallback;
+   private final WaitingNamedExecutorService   executor;
+   private final OrderedResultIterator<byte[]> members;
+   private byte[]                              current    = new byte[0];
+   private int                                 pos        = 0;
+   private long                                nextMember = 0;
+   private boolean                             closed     = false;
+
+   /**
+    * Instance a new stream.
+    * 
+    * @param file The gzipped file
+    * @param threads Number of threads to inflate the members. (only used for BGZF)
+    * @throws IOException if the file can't be read
+    */
+   public ParallelGzipInputStream(Path file, int threads) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      try {
+         if (threads < 1) threads = 1;
+         ByteBuffer header = ByteBuffer.allocate(18);
+         channel.read(header, 0);
+         header.flip();
+         if (bgzfMemberSize(header) < 0) {
+            if (LOG.isDebugEnabled()) LOG.debug(file + " is not block gzipped, fall back to GZIPInputStream.");
+            fallback = new GZIPInputStream(Channels.newInputStream(channel), 1 << 16); // ZipException if it's no gzip at all
+            executor = null;
+            members = null;
+            return;
+         }
+         fallback = null;
+         executor = new WaitingNamedExecutorService("gunzip " + file.getFileName(), threads * 2, threads);
+         members = new OrderedResultIterator<>(executor, new MemberReader(), threads * 4);
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Factory for a stream of lines (UTF-8) from a gzipped file
+    * 
+    * @param file The gzipped file
+    * @param threads Number of threads to inflate the members. (only used for BGZF)
+    * @return A stream of lines. The stream should be closed to release the file and the threads.
+    */
+   public static Stream<String> lines(Path file, int threads) {
+      try {
+         BufferedReader lines = new BufferedReader(new InputStreamReader(new ParallelGzipInputStream(file, threads), StandardCharsets.UTF_8), 1 << 16);
+         return lines.lines().onClose(() -> {
+            try {
+               lines.close();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         });
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * @return TRUE if the members are inflated in parallel, FALSE for the fallback to {@link GZIPInputStream}
+    */
+   public boolean isParallel() {
+      return fallback == null;
+   }
+
+   @Override
+   public int read() throws IOException {
+      if (fallback != null) return fallback.read();
+      if (!next()) return -1;
+      return current[pos++] & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (fallback != null) return fallback.read(b, off, len);
+      if (len == 0) return 0;
+      if (!next()) return -1;
+      int count = Math.min(len, current.length - pos);
+      System.arraycopy(current, pos, b, off, count);
+      pos += count;
+      return count;
+   }
+
+   @Override
+   public int available() throws IOException {
+      if (fallback != null) return fallback.available();
+      return current.length - pos;
+   }
+
+   /**
+    * Stop the decompression and release the file and the threads.
+    */
+   @Override
+   public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      if (fallback != null) {
+         fallback.close();
+         return;
+      }
+      members.cancel();
+      executor.shutdown();
+      channel.close();
+   }
+
+   /**
+    * Helper to get the next inflated member, if the current one is consumed.
+    * 
+    * @return FALSE at the end of the file
+    */
+   private boolean next() throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      try {
+         while (pos >= current.length) { // skip empty members (e.g. the EOF marker of BGZF)
+            if (!members.hasNext()) return false;
+            current = members.next();
+            pos = 0;
+         }
+         return true;
+      } catch (UncheckedIOException e) {
+         throw e.getCause();
+      } catch (RuntimeException e) {
+         if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+         throw e;
+      }
+   }
+
+   /**
+    * Helper to get the size of a BGZF member from its header.
+    * 
+    * @param header The first bytes of the member (at least 18)
+    * @return The size of the whole member, or -1 if the header is not a BGZF header.
+    */
+   private static int bgzfMemberSize(ByteBuffer header) {
+      if (header.remaining() < 18) return -1;
+      if (((header.get(0) & 0xFF) != 0x1F) || ((header.get(1) & 0xFF) != 0x8B) || (header.get(2) != 8)) return -1;
+      if ((header.get(3) & FEXTRA) == 0) return -1;
+      int xlen = (header.get(10) & 0xFF) | ((header.get(11) & 0xFF) << 8);
+      // BGZF writes the 'BC' subfield as the first one
+      if ((xlen < 6) || (header.get(12) != 'B') || (header.get(13) != 'C') || (header.get(14) != 2) || (header.get(15) != 0)) return -1;
+      return ((header.get(16) & 0xFF) | ((header.get(17) & 0xFF) << 8)) + 1;
+   }
+
+   /**
+    * Cuts the members out of the file, each as a task to inflate it.
+    */
+   private class MemberReader implements Iterator<Callable<byte[]>> {
+      private final long size;
+
+      MemberReader() throws IOException {
+         size = channel.size();
+      }
+
+      @Override
+      public boolean hasNext() {
+         return nextMember < size;
+      }
+
+      @Override
+      public Callable<byte[]> next() {
+         if (!hasNext()) throw new NoSuchElementException();
+         try {
+            ByteBuffer header = ByteBuffer.allocate(18);
+            readFully(header, nextMember);
+            header.flip();
+            int memberSize = bgzfMemberSize(header);
+            if (memberSize < 0) throw new IOException("No BGZF member at offset " + nextMember);
+            ByteBuffer member = ByteBuffer.allocate(memberSize);
+            readFully(member, nextMember);
+            nextMember += memberSize;
+            return () -> inflate(member.array());
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+
+      private void readFully(ByteBuffer buffer, long position) throws IOException {
+         while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException("Truncated BGZF member at offset " + position);
+         }
+      }
+   }
+
+   /**
+    * Inflate a single gzip member and check its CRC.
+    * 
+    * @param member The whole member (header, deflated data, trailer)
+    * @return The inflated data
+    * @throws IOException if the member is corrupt
+    */
+   static byte[] inflate(byte[] member) throws IOException {
+      int flags = member[3] & 0xFF;
+      int offset = 10;
+      if ((flags & FEXTRA) != 0) offset += 2 + ((member[10] & 0xFF) | ((member[11] & 0xFF) << 8));
+      if ((flags & FNAME) != 0) offset = skipString(member, offset);
+      if ((flags & FCOMMENT) != 0) offset = skipString(member, offset);
+      if ((flags & FHCRC) != 0) offset += 2;
+      int trailer = member.length - 8;
+      int expectedCrc = readInt(member, trailer);
+      int size = readInt(member, trailer + 4);
+      if ((size < 0) || (size > MAXISIZE)) throw new IOException("Corrupt gzip member, invalid size " + size + ".");
+      byte[] data = new byte[size];
+      Inflater inflater = new Inflater(true);
+      try {
+         inflater.setInput(member, offset, trailer - offset);
+         int length = 0;
+         while (length < data.length) {
+            int count = inflater.inflate(data, length, data.length - length);
+            if ((count == 0) && (inflater.finished() || inflater.needsInput())) break;
+            length += count;
+         }
+         if (length != data.length) throw new IOException("Corrupt gzip member, " + length + " of " + data.length + " bytes.");
+      } catch (DataFormatException e) {
+         throw new IOException("Corrupt gzip member", e);
+      } finally {
+         inflater.end();
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      if ((int) crc.getValue() != expectedCrc) throw new IOException("CRC error in gzip member.");
+      return data;
+   }
+
+   /**
+    * Helper to skip a zero terminated string of the header
+    */
+   private static int skipString(byte[] data, int offset) {
+      while (data[offset] != 0) offset++;
+      return offset + 1;
+   }
+
+   /**
+    * Helper to read a little endian int
+    */
+   private static int readInt(byte[] data, int offset) {
+      return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+   }
+
+   /**
+    * Poor man's test harness.<br>
+    * Reads a gzipped file with the {@link GZIPInputStream} and with this stream, and prints the elapsed times.
+    * 
+    * @param args [0] the gzipped file, [1] number of threads (default: number of cores)
+    * @throws IOException if the file can't be read
+    */
+   public static void main(String[] args) throws IOException {
+      Path file = Paths.get(args[0]);
+      int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+      byte[] buffer = new byte[1 << 16];
+      for (int i = 0; i < 3; i++) {
+         long time = System.currentTimeMillis();
+         long plain = 0;
+         try (InputStream in = new GZIPInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)), 1 << 16)) {
+            int count;
+            while ((count = in.read(buffer)) >= 0) plain += count;
+         }
+         long plainTime = System.currentTimeMillis() - time;
+         time = System.currentTimeMillis();
+         long parallel = 0;
+         boolean isParallel;
+         try (ParallelGzipInputStream in = new ParallelGzipInputStream(file, threads)) {
+            isParallel = in.isParallel();
+            int count;
+            while ((count = in.read(buffer)) >= 0) parallel += count;
+         }
+         long parallelTime = System.currentTimeMillis() - time;
+         System.out.println("GZIPInputStream: " + plain + " bytes in " + plainTime + "ms, ParallelGzipInputStream (" + (isParallel ? threads + " threads" : "fallback") + "): "
+               + parallel + " bytes in " + parallelTime + "ms");
+      }
+   }
+}
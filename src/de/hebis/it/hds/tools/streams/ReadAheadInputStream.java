@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Input stream with an own reader thread, reading ahead of the consumer.<br>
+ * The reader fills a fixed ring of large buffers. If all buffers are filled, the reader waits for the consumer (backpressure), so the memory is limited to
+ * (depth + 1) * buffersize. The I/O (e.g. from a slow NFS mount) overlaps with the processing of the consumer.<br>
+ * Typical use: <code>TextBlockSpliterator.toTextBlocks(ReadAheadInputStream.lines(file, 1 &lt;&lt; 20, 4), start, end, false)</code>
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-25 uh First try
+ */
+public class ReadAheadInputStream extends InputStream {
+   static final Logger                LOG     = LogManager.getLogger(ReadAheadInputStream.class);
+   private static final AtomicInteger COUNTER = new AtomicInteger();
+   private final InputStream          source;
+   private final BlockingQueue<Chunk> free;
+   private final BlockingQueue<Chunk> filled;
+   private final Thread               reader;
+   private Chunk                      current = null;
+   private int                        pos     = 0;
+   private volatile boolean           closed  = false;
+
+   /**
+    * A buffer of the ring
+    */
+   private static class Chunk {
+      final byte[] data;
+      int          length;
+      IOException  error;
+
+      Chunk(int size) {
+         data = new byte[size];
+      }
+   }
+
+   /**
+    * Instance a new stream and start the reader thread.
+    * 
+    * @param source The stream to read from. It is closed with this stream.
+    * @param bufferSize Size of each buffer
+    * @param depth Number of buffers the reader may fill ahead of the consumer
+    */
+   public ReadAheadInputStream(InputStream source, int bufferSize, int depth) {
+      this.source = source;
+      if (bufferSize < 1) bufferSize = 1 << 16;
+      if (depth < 1) depth = 1;
+      free = new ArrayBlockingQueue<>(depth + 1);
+      filled = new ArrayBlockingQueue<>(depth + 1);
+      for (int i = 0; i <= depth; i++) free.add(new Chunk(bufferSize));
+      reader = new Thread(this::fill, "ReadAhead-" + COUNTER.incrementAndGet());
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   /**
+    * Factory for a stream of lines (UTF-8) read ahead of the consumer.
+    * 
+    * @param file The file to read
+    * @param bufferSize Size of each buffer (e.g. 1MB)
+    * @param depth Number of buffers the reader may fill ahead of the consumer
+    * @return A stream of lines. The stream should be closed to release the file and stop the reader.
+    */
+   public static Stream<String> lines(Path file, int bufferSize, int depth) {
+      try {
+         ReadAheadInputStream in = new ReadAheadInputStream(Files.newInputStream(file), bufferSize, depth);
+         BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+         return lines.lines().onClose(() -> {
+            try {
+               lines.close();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         });
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   @Override
+   public int read() throws IOException {
+      if (!next()) return -1;
+      return current.data[pos++] & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (!next()) return -1;
+      int count = Math.min(len, current.length - pos);
+      System.arraycopy(current.data, pos, b, off, count);
+      pos += count;
+      return count;
+   }
+
+   @Override
+   public int available() throws IOException {
+      return ((current == null) || (current.length < 0)) ? 0 : current.length - pos;
+   }
+
+   /**
+    * Stop the reader and close the source.
+    */
+   @Override
+   public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      reader.interrupt();
+      source.close();
+   }
+
+   /**
+    * Helper to get the next filled buffer, if the current one is consumed. The consumed buffer goes back to the reader.
+    * 
+    * @return FALSE at the end of the stream
+    */
+   private boolean next() throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if ((current != null) && (current.length < 0)) return false; // EOF seen before
+      if ((current != null) && (pos < current.length)) return true;
+      if (current != null) free.add(current);
+      try {
+         current = filled.take();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         current = null;
+         throw new InterruptedIOException("interupt received, while waiting for the reader.");
+      }
+      pos = 0;
+      if (current.error != null) {
+         IOException e = current.error;
+         current.length = -1;
+         throw e;
+      }
+      return current.length >= 0;
+   }
+
+   /**
+    * The loop of the reader thread. Each buffer is filled completely (except the last), the end of the source is marked by a buffer with the length -1.
+    */
+   private void fill() {
+      try {
+         while (!closed) {
+            Chunk chunk = free.take();
+            int length = 0;
+            try {
+               int count = 0;
+               while ((length < chunk.data.length) && ((count = source.read(chunk.data, length, chunk.data.length - length)) >= 0)) length += count;
+               chunk.length = (length == 0) ? -1 : length;
+               chunk.error = null;
+            } catch (IOException e) {
+               if (closed) return;
+               chunk.length = -1;
+               chunk.error = e;
+            }
+            filled.put(chunk);
+            if (chunk.length < 0) return;
+            if (length < chunk.data.length) { // EOF reached, mark it
+               Chunk eof = free.take();
+               eof.length = -1;
+               eof.error = null;
+               filled.put(eof);
+               return;
+            }
+         }
+      } catch (InterruptedException e) {
+         if (LOG.isDebugEnabled()) LOG.debug(Thread.currentThread().getName() + " stopped.");
+      }
+   }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 by HeBIS (www.hebis.de).
+ * 
+ * This file is part of HeBIS HdsToolkit.
+ * 
+ * This is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * 
+ * This code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with the code.  If not, see http://www.gnu.org/licenses/agpl>.
+ */
+package de.hebis.it.hds.tools.streams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A block of lines as one contiguous {@link CharSequence}.<br>
+ * The lines are stored in a single growing buffer, separated by '\n'. The boundaries of the lines are available on request.<br>
+ * In the 'recycle' mode of the {@link CharBlockSpliterator} the same instance is reused for the next block. So it is only valid within the consumer, use {@link #toString()} or
+ * {@link #copy()} to keep the content.
+ * 
+ * @author Uwe Reh (uh), HeBIS-IT
+ * @version 2017-04-24 uh First try
+ */
+public class TextBlock implements CharSequence {
+   private char[] chars;
+   private int    length     = 0;
+   private int[]  lineStarts = new int[64];
+   private int    lineCount  = 0;
+
+   /**
+    * Instance a new empty block
+    * 
+    * @param capacity Initial size of the buffer (number of chars)
+    */
+   public TextBlock(int capacity) {
+      chars = new char[Math.max(16, capacity)];
+   }
+
+   /**
+    * Add a line to the block
+    * 
+    * @param line The line without line terminator
+    */
+   void append(String line) {
+      int lineLength = line.length();
+      line.getChars(0, lineLength, reserve(lineLength), length - lineLength);
+   }
+
+   /**
+    * Add a line to the block
+    * 
+    * @param line The buffer with the line
+    * @param from The start of the line
+    * @param to The end of the line (exclusive), without line terminator
+    */
+   void append(char[] line, int from, int to) {
+      System.arraycopy(line, from, reserve(to - from), length - (to - from), to - from);
+   }
+
+   /**
+    * Helper to make room for a new line
+    * 
+    * @param lineLength The length of the line
+    * @return The buffer, the line has to be copied to the last lineLength chars of the block.
+    */
+   private char[] reserve(int lineLength) {
+      int needed = length + lineLength + ((lineCount == 0) ? 0 : 1);
+      if (needed > chars.length) chars = Arrays.copyOf(chars, Math.max(chars.length * 2, needed));
+      if (lineCount == lineStarts.length) lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+      if (lineCount > 0) chars[length++] = '\n';
+      lineStarts[lineCount++] = length;
+      length += lineLength;
+      return chars;
+   }
+
+   /**
+    * Empty the block, the buffers are kept
+    */
+   void clear() {
+      length = 0;
+      lineCount = 0;
+   }
+
+   @Override
+   public int length() {
+      return length;
+   }
+
+   @Override
+   public char charAt(int index) {
+      if ((index < 0) || (index >= length)) throw new IndexOutOfBoundsException("index: " + index + ", length: " + length);
+      return chars[index];
+   }
+
+   @Override
+   public CharSequence subSequence(int start, int end) {
+      if ((start < 0) || (end > length) || (start > end)) throw new IndexOutOfBoundsException("start: " + start + ", end: " + end + ", length: " + length);
+      return new String(chars, start, end - start);
+   }
+
+   /**
+    * @return The number of lines
+    */
+   public int lineCount() {
+      return lineCount;
+   }
+
+   /**
+    * @param line Number of the line (0 based)
+    * @return Index of the first char of the line
+    */
+   public int lineStart(int line) {
+      if ((line < 0) || (line >= lineCount)) throw new IndexOutOfBoundsException("line: " + line + ", lines: " + lineCount);
+      return lineStarts[line];
+   }
+
+   /**
+    * @param line Number of the line (0 based)
+    * @return Index behind the last char of the line (the line terminator is not included)
+    */
+   public int lineEnd(int line) {
+      if ((line < 0) || (line >= lineCount)) throw new IndexOutOfBoundsException("line: " + line + ", lines: " + lineCount);
+      return (line + 1 < lineCount) ? lineStarts[line + 1] - 1 : length;
+   }
+
+   /**
+    * @param line Number of the line (0 based)
+    * @return The line without line terminator
+    */
+   public String line(int line) {
+      int start = lineStart(line);
+      return new String(chars, start, lineEnd(line) - start);
+   }
+
+   /**
+    * @return The lines of the block, like the blocks of the {@link TextBlockSpliterator}
+    */
+   public List<String> lines() {
+      List<String> lines = new ArrayList<>(lineCount);
+      for (int i = 0; i < lineCount; i++) lines.add(line(i));
+      return lines;
+   }
+
+   /**
+    * @return A copy of the block, independent of the buffer of this block.
+    */
+   public TextBlock copy() {
+      TextBlock copy = new TextBlock(length);
+      System.arraycopy(chars, 0, copy.chars, 0, length);
+      copy.length = length;
+      copy.lineStarts = Arrays.copyOf(lineStarts, Math.max(1, lineCount));
+      copy.lineCount = lineCount;
+      return copy;
+   }
+
+   /**
+    * @return The lines joined by '\n'
+    */
+   @Override
+   public String toString() {
+      return new String(chars, 0, length);
+   }
+}
@@ -17,6 +17,12 @@
  */
 package de.hebis.it.hds.tools.streams;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Spliterator;
@@ -122,4 +128,58 @@ public class TextBlockSpliterator implements Spliterator<List<String>> {
    public static Stream<List<String>> toTextBlocks(Stream<String> lines, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern, boolean parallel) {
       return StreamSupport.stream(new TextBlockSpliterator(lines.spliterator(), blockStartPattern, blockEndPattern), parallel);
    }
+
+   /**
+    * Factory for a new stream of text blocks stripped out of a stream of lines. Each block is one contiguous {@link TextBlock}. (see {@link CharBlockSpliterator})
+    * 
+    * @param lines The {@link Stream} to consume
+    * @param blockStartPattern Pattern to identify the start of a block
+    * @param blockEndPattern Pattern to identify the end of a block
+    * @param recycle Reuse the {@link TextBlock} for the next block. Only for pipelines, consuming each block before the next is read.
+    * @return A stream of blocks
+    */
+   public static Stream<TextBlock> toCharBlocks(Stream<String> lines, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern, boolean recycle) {
+      return StreamSupport.stream(new CharBlockSpliterator(lines.spliterator(), blockStartPattern, blockEndPattern, recycle), false);
+   }
+
+   /**
+    * Factory for a new stream of text blocks read from a {@link Reader}, without a string per line. Each block is one contiguous {@link TextBlock}. (see
+    * {@link CharBlockSpliterator})
+    * 
+    * @param text The text to read. It has to be closed by the caller.
+    * @param blockStartPattern Pattern to identify the start of a block, see {@link CharBlockSpliterator#contains(String)}
+    * @param blockEndPattern Pattern to identify the end of a block
+    * @param recycle Reuse the {@link TextBlock} for the next block. Only for pipelines, consuming each block before the next is read.
+    * @return A stream of blocks
+    */
+   public static Stream<TextBlock> toCharBlocks(Reader text, Predicate<? super CharSequence> blockStartPattern, Predicate<? super CharSequence> blockEndPattern,
+         boolean recycle) {
+      return StreamSupport.stream(new CharBlockSpliterator(text, blockStartPattern, blockEndPattern, recycle), false);
+   }
+
+   /**
+    * Factory for a new stream of text blocks read from a file (UTF-8)<br>
+    * Differing to {@link #toTextBlocks(Stream, Predicate, Predicate, boolean)} the file is split by byte ranges, so the blocks can be found in parallel. (see
+    * {@link FileTextBlockSpliterator})
+    * 
+    * @param file The file to read
+    * @param blockStartPattern Pattern to identify the start of a block
+    * @param blockEndPattern Pattern to identify the end of a block
+    * @param parallel May the output stream processed in parallel or not
+    * @return A stream of blocks (block ~ list of strings). The stream should be closed to release the file.
+    */
+   public static Stream<List<String>> toTextBlocks(Path file, Predicate<String> blockStartPattern, Predicate<String> blockEndPattern, boolean parallel) {
+      try {
+         FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+         return StreamSupport.stream(new FileTextBlockSpliterator(channel, blockStartPattern, blockEndPattern), parallel).onClose(() -> {
+            try {
+               channel.close();
+            } catch (IOException e) {
+               throw new UncheckedIOException(e);
+            }
+         });
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
 }